@@ -0,0 +1,151 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import javax.jdo.JDOUserException;
+import javax.jdo.Query;
+import javax.jdo.Transaction;
+
+/**
+ * Asynchronous view of a connection handle, obtained from {@link PersistenceManagerImpl#async()}, whose operations return
+ * a CompletionStage and run on the asynchronous executor of the connection factory, so that the calling thread can do
+ * other work meanwhile (such as issue operations on other handles). Since a PersistenceManager is not thread-safe, the
+ * operations on the PersistenceManager of a connection run one at a time, in the order they were issued, whichever handle
+ * of the connection issued them.
+ * <p>
+ * When issued within a datastore transaction, an operation first obtains the datastore connection of the transaction on the
+ * calling thread, so that it is enlisted in the transaction, and the operations then run on that connection. Operations
+ * cannot be issued within an optimistic transaction, since that obtains a datastore connection for each operation, which
+ * would not be enlisted from the executor thread. Outside of a transaction, each operation runs non-transactionally.
+ * Query results are read completely by the operation. Pending operations should complete before the handle is closed or
+ * the transaction completes.
+ */
+public class AsyncPersistenceManager
+{
+    private final PersistenceManagerImpl handle;
+
+    private final Executor executor;
+
+    /**
+     * Constructor.
+     * @param handle The connection handle
+     * @param executor Executor to run the operations on
+     */
+    AsyncPersistenceManager(PersistenceManagerImpl handle, Executor executor)
+    {
+        this.handle = handle;
+        this.executor = executor;
+    }
+
+    /**
+     * Accessor for the connection handle that operations run on.
+     * @return The handle
+     */
+    public PersistenceManagerImpl getPersistenceManager()
+    {
+        return handle;
+    }
+
+    /**
+     * Method to execute a query of the handle.
+     * @param query The query
+     * @param parameters The query parameters
+     * @return The result of the query, with any Collection result read completely
+     */
+    public CompletionStage<Object> execute(Query<?> query, Object... parameters)
+    {
+        return submit(() -> {
+            Object result = query.executeWithArray(parameters);
+            return result instanceof Collection ? new ArrayList<Object>((Collection<?>)result) : result;
+        });
+    }
+
+    /**
+     * Method to execute a query of the handle, returning a list of results.
+     * @param query The query
+     * @return The results
+     * @param <T> Type of the results
+     */
+    public <T> CompletionStage<List<T>> executeList(Query<T> query)
+    {
+        return submit(() -> new ArrayList<>(query.executeList()));
+    }
+
+    /**
+     * Method to get the objects with the provided identities.
+     * @param oids The identities
+     * @return The objects
+     */
+    public CompletionStage<Collection<?>> getObjectsById(Collection<?> oids)
+    {
+        return submit(() -> handle.getObjectsById(oids));
+    }
+
+    /**
+     * Method to make a collection of objects persistent.
+     * @param pcs The objects
+     * @return The persistent objects
+     * @param <T> Type of the objects
+     */
+    @SuppressWarnings("unchecked") // The objects persisted are of the type of those provided
+    public <T> CompletionStage<Collection<T>> makePersistentAll(Collection<T> pcs)
+    {
+        return submit(() -> handle.makePersistentAll(pcs));
+    }
+
+    /**
+     * Method to flush the changes of the transaction to the datastore.
+     * @return Stage completing when flushed
+     */
+    public CompletionStage<Void> flush()
+    {
+        return submit(() -> {
+            handle.flush();
+            return null;
+        });
+    }
+
+    /**
+     * Method to issue an operation, to run once the previous operation on the PersistenceManager has completed.
+     * @param operation The operation
+     * @return The result of the operation
+     * @throws JDOUserException if the calling thread is in an optimistic transaction
+     */
+    private <T> CompletionStage<T> submit(Supplier<T> operation)
+    {
+        Transaction tx = handle.currentTransaction();
+        if (tx.isActive()) // Joins the transaction of the calling thread, if any
+        {
+            if (tx.getOptimistic())
+            {
+                throw new JDOUserException("Asynchronous operations are not supported within an optimistic transaction");
+            }
+
+            // Obtain the datastore connection on this thread so it is enlisted, and retained for the rest of the transaction
+            handle.getDataStoreConnection().close();
+        }
+        return handle.mc.runAsync(operation, executor);
+    }
+}
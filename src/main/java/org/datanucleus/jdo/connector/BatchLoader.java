@@ -0,0 +1,197 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jdo.JDOException;
+import javax.jdo.Query;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.api.jdo.JDOPersistenceManager;
+import org.datanucleus.identity.IdentityUtils;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.IdentityType;
+import org.datanucleus.state.DNStateManager;
+import org.datanucleus.state.LifeCycleState;
+
+/**
+ * Loads multiple objects of a PersistenceManager with one query per class and batch of identities, rather than with one
+ * SELECT per object, before getObjectsById, retrieveAll or refreshAll is delegated to the PersistenceManager, which then
+ * finds the objects already loaded. Only objects of classes with single-field application identity are batched, the others
+ * being left to the PersistenceManager. The loaded objects are returned, and need to be held until the delegated operation
+ * is done since the Level 1 cache may only hold them softly.
+ */
+class BatchLoader
+{
+    private final JDOPersistenceManager pm;
+
+    private final ExecutionContext ec;
+
+    private final int batchSize;
+
+    /** Keys to load, per candidate class name. */
+    private final Map<String, List<Object>> keysByClass = new LinkedHashMap<>();
+
+    /**
+     * Constructor.
+     * @param pm The PersistenceManager
+     * @param batchSize Maximum number of objects to load per query
+     */
+    BatchLoader(JDOPersistenceManager pm, int batchSize)
+    {
+        this.pm = pm;
+        this.ec = pm.getExecutionContext();
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Method to load the objects with the provided identities that are not already cached.
+     * @param oids The identities
+     * @return The objects loaded
+     */
+    List<Object> loadIdentities(Collection<?> oids)
+    {
+        for (Object id : oids)
+        {
+            if (id != null && IdentityUtils.isSingleFieldIdentity(id) && ec.getObjectFromCache(id) == null)
+            {
+                String className = IdentityUtils.getTargetClassNameForIdentity(id);
+                AbstractClassMetaData cmd = ec.getMetaDataManager().getMetaDataForClass(className, ec.getClassLoaderResolver());
+                add(cmd, IdentityUtils.getTargetKeyForSingleFieldIdentity(id));
+            }
+        }
+        return load();
+    }
+
+    /**
+     * Method to load the fields of the provided objects that are hollow.
+     * @param pcs The objects
+     * @return The objects loaded
+     */
+    List<Object> loadHollow(Collection<?> pcs)
+    {
+        for (Object pc : pcs)
+        {
+            DNStateManager<?> sm = pc != null ? ec.findStateManager(pc) : null;
+            if (sm != null && sm.getLifecycleState().stateType() == LifeCycleState.HOLLOW)
+            {
+                add(sm);
+            }
+        }
+        return load();
+    }
+
+    /**
+     * Method to reload the provided objects that have no changes, equivalent to refreshing them. The objects that can't be
+     * reloaded this way, such as new or changed objects, are added to <cite>others</cite> to be refreshed individually.
+     * @param pcs The objects
+     * @param others Collection to add the objects not reloaded to
+     * @return The objects reloaded
+     */
+    List<Object> reload(Collection<?> pcs, Collection<Object> others)
+    {
+        List<Object> evicted = new ArrayList<>();
+        for (Object pc : pcs)
+        {
+            DNStateManager<?> sm = pc != null ? ec.findStateManager(pc) : null;
+            LifeCycleState state = sm != null ? sm.getLifecycleState() : null;
+            if (state != null && !state.isDirty() && !state.isNew() && !state.isDeleted() && add(sm))
+            {
+                evicted.add(pc);
+            }
+            else
+            {
+                others.add(pc);
+            }
+        }
+        pm.evictAll(evicted);
+        return load();
+    }
+
+    /**
+     * Method to add the object managed by a StateManager to the objects to load, if its class can be batched.
+     * @param sm The StateManager
+     * @return Whether the object was added
+     */
+    private boolean add(DNStateManager<?> sm)
+    {
+        Object id = sm.getInternalObjectId();
+        if (!IdentityUtils.isSingleFieldIdentity(id))
+        {
+            return false;
+        }
+        return add(sm.getClassMetaData(), IdentityUtils.getTargetKeyForSingleFieldIdentity(id));
+    }
+
+    private boolean add(AbstractClassMetaData cmd, Object key)
+    {
+        if (cmd == null || cmd.getIdentityType() != IdentityType.APPLICATION || cmd.getNoOfPrimaryKeyMembers() != 1)
+        {
+            return false;
+        }
+        keysByClass.computeIfAbsent(cmd.getFullClassName(), k -> new ArrayList<>()).add(key);
+        return true;
+    }
+
+    /**
+     * Method to load the objects added, with a query per class and batch of keys. Should a query fail, the objects it would
+     * have loaded are left for the PersistenceManager to load.
+     * @return The objects loaded
+     */
+    private List<Object> load()
+    {
+        List<Object> loaded = new ArrayList<>();
+        ClassLoaderResolver clr = ec.getClassLoaderResolver();
+        for (Map.Entry<String, List<Object>> entry : keysByClass.entrySet())
+        {
+            List<Object> keys = entry.getValue();
+            if (keys.size() < 2)
+            {
+                continue;
+            }
+            AbstractClassMetaData cmd = ec.getMetaDataManager().getMetaDataForClass(entry.getKey(), clr);
+            String pkName = cmd.getMetaDataForManagedMemberAtAbsolutePosition(cmd.getPKMemberPositions()[0]).getName();
+            Class<?> cls = clr.classForName(entry.getKey());
+            for (int i = 0; i < keys.size(); i += batchSize)
+            {
+                List<Object> batch = keys.subList(i, Math.min(i + batchSize, keys.size()));
+                Query<?> query = pm.newQuery(cls, ":keys.contains(" + pkName + ")");
+                try
+                {
+                    loaded.addAll((Collection<?>)query.execute(batch));
+                }
+                catch (JDOException e)
+                {
+                    PersistenceManagerImpl.LOGGER.debug("Unable to load " + batch.size() + " objects of " + entry.getKey() + " in a batch : " + e);
+                }
+                finally
+                {
+                    query.closeAll();
+                }
+            }
+        }
+        keysByClass.clear();
+        return loaded;
+    }
+}
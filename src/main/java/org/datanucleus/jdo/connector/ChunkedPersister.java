@@ -0,0 +1,134 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.function.LongConsumer;
+
+import javax.jdo.JDOUserException;
+
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.PropertyNames;
+import org.datanucleus.api.jdo.JDOPersistenceManager;
+import org.datanucleus.cache.Level1Cache;
+import org.datanucleus.state.DNStateManager;
+
+/**
+ * Persists a stream of objects in chunks with bounded memory. Each chunk is persisted with makePersistentAll and flushed
+ * (so its INSERTs are batched), after which the objects managed because of it are released from the transaction and the
+ * Level 1 cache, their changes already being in the datastore, and disconnected from their StateManager so that they are
+ * transient, rather than holding a StateManager that a rollback would not revert. The objects managed before the stream
+ * started are left managed. Persistence-by-reachability at commit is switched off meanwhile, since it would otherwise keep
+ * the identity of every object persisted.
+ */
+class ChunkedPersister
+{
+    private final JDOPersistenceManager pm;
+
+    private final int chunkSize;
+
+    /**
+     * Constructor.
+     * @param pm The PersistenceManager
+     * @param chunkSize Number of objects to persist per chunk
+     */
+    ChunkedPersister(JDOPersistenceManager pm, int chunkSize)
+    {
+        if (chunkSize < 1)
+        {
+            throw new JDOUserException("Chunk size must be positive : " + chunkSize);
+        }
+        this.pm = pm;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Method to persist the objects of an iterator.
+     * @param objects The objects to persist
+     * @param progress Consumer of the number of objects persisted so far, after each chunk (or null)
+     * @return The number of objects persisted
+     */
+    long persist(Iterator<?> objects, LongConsumer progress)
+    {
+        ExecutionContext ec = pm.getExecutionContext();
+        Level1Cache l1Cache = ec.getLevel1Cache();
+        Set<Object> managedBefore = l1Cache != null ? new HashSet<>(l1Cache.keySet()) : null;
+        boolean reachabilityAtCommit = ec.getBooleanProperty(PropertyNames.PROPERTY_PERSISTENCE_BY_REACHABILITY_AT_COMMIT);
+        if (reachabilityAtCommit)
+        {
+            pm.setProperty(PropertyNames.PROPERTY_PERSISTENCE_BY_REACHABILITY_AT_COMMIT, false);
+        }
+
+        long count = 0;
+        try
+        {
+            List<Object> chunk = new ArrayList<>(chunkSize);
+            while (objects.hasNext())
+            {
+                chunk.add(objects.next());
+                if (chunk.size() == chunkSize || !objects.hasNext())
+                {
+                    pm.makePersistentAll(chunk);
+                    pm.flush();
+                    if (managedBefore != null)
+                    {
+                        release(ec, l1Cache, managedBefore);
+                    }
+                    count += chunk.size();
+                    chunk.clear();
+                    if (progress != null)
+                    {
+                        progress.accept(count);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            if (reachabilityAtCommit)
+            {
+                pm.setProperty(PropertyNames.PROPERTY_PERSISTENCE_BY_REACHABILITY_AT_COMMIT, true);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Method to release the objects that have become managed since the stream started, and have no unflushed changes,
+     * making them transient.
+     */
+    private static void release(ExecutionContext ec, Level1Cache l1Cache, Set<Object> managedBefore)
+    {
+        List<DNStateManager<?>> released = new ArrayList<>();
+        l1Cache.forEach((id, sm) -> {
+            if (sm != null && !managedBefore.contains(id) && !sm.isWaitingToBeFlushedToDatastore() && sm.getDirtyFieldNumbers() == null)
+            {
+                released.add(sm);
+            }
+        });
+        for (DNStateManager<?> sm : released)
+        {
+            ec.evictFromTransaction(sm);
+            sm.disconnect(); // Also removes it from the Level 1 cache
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.jdo.JDOException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+
+import org.datanucleus.api.jdo.JDOPersistenceManager;
+import org.datanucleus.api.jdo.JDOPersistenceManagerFactory;
+import org.datanucleus.api.jdo.JDOQuery;
+import org.datanucleus.store.query.Query.QueryType;
+
+/**
+ * Bounded cache of compiled queries, shared by all ManagedConnections of a {@link ManagedConnectionFactoryImpl}.
+ * For each distinct query (keyed by candidate class and query text) a template query is created and compiled once, on a
+ * PersistenceManager owned by the cache. Handles then create their queries as copies of the template, so the single-string
+ * form isn't parsed again, and compiling the copy finds the generic and datastore compilations in the PMF query caches.
+ * Those caches hold their compilations by soft reference by default; the templates keep the compilations of the cached
+ * queries strongly reachable, so they are not discarded under memory pressure and recompiled under load.
+ * Only SELECT queries are cached. Queries failing to compile are not cached, so their errors are reported on execution as without the cache.
+ * Each query is compiled by the first thread needing it, without blocking the compilation of other queries, while
+ * threads needing the same query wait for that compilation.
+ */
+class CompiledQueryCache
+{
+    private final JDOPersistenceManagerFactory pmf;
+
+    private final int maxSize;
+
+    /** Templates keyed by candidate class and query text, completed with null when the query isn't cached. */
+    private final Map<String, CompletableFuture<Query<?>>> templates = new ConcurrentHashMap<>();
+
+    /** Keys of the templates in order of addition, for eviction. */
+    private final Queue<String> keys = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    /** PersistenceManager owning the templates. Multithreaded, since queries are compiled on it concurrently. */
+    private PersistenceManager templatePm;
+
+    /**
+     * Constructor.
+     * @param pmf The PMF whose queries are cached
+     * @param maxSize Maximum number of queries cached
+     */
+    CompiledQueryCache(JDOPersistenceManagerFactory pmf, int maxSize)
+    {
+        this.pmf = pmf;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Method to create a single-string query on the provided PM, as a copy of the cached template where possible.
+     * @param pm The PersistenceManager of the handle
+     * @param query The single-string query
+     * @return The query
+     */
+    Query<?> newQuery(JDOPersistenceManager pm, String query)
+    {
+        Query<?> template = getTemplate(null, query);
+        return template != null ? copy(pm, template) : pm.newQuery(query);
+    }
+
+    /**
+     * Method to create a query for a candidate class and filter on the provided PM, as a copy of the cached template
+     * where possible.
+     * @param pm The PersistenceManager of the handle
+     * @param cls The candidate class
+     * @param filter The filter
+     * @return The query
+     */
+    Query<?> newQuery(JDOPersistenceManager pm, Class<?> cls, String filter)
+    {
+        Query<?> template = getTemplate(cls, filter);
+        return template != null ? copy(pm, template) : pm.newQuery(cls, filter);
+    }
+
+    /**
+     * Method to create a copy of a template on the provided PM. The JDOQL copy constructor doesn't copy the uniqueness and
+     * having clause, so these are set here.
+     * @param pm The PersistenceManager of the handle
+     * @param template The template
+     * @return The query
+     */
+    private static Query<?> copy(JDOPersistenceManager pm, Query<?> template)
+    {
+        org.datanucleus.store.query.Query<?> internalTemplate = ((JDOQuery<?>)template).getInternalQuery();
+        Query<?> query = pm.newQuery(template);
+        org.datanucleus.store.query.Query<?> internalQuery = ((JDOQuery<?>)query).getInternalQuery();
+        if (internalTemplate.isUnique())
+        {
+            internalQuery.setUnique(true);
+        }
+        if (internalTemplate.getHaving() != null)
+        {
+            internalQuery.setHaving(internalTemplate.getHaving());
+        }
+        return query;
+    }
+
+    /**
+     * Accessor for the compiled template of a query, creating it if not cached.
+     * @param cls The candidate class, or null for a single-string query
+     * @param text The single-string query or filter
+     * @return The template, or null if the query doesn't compile
+     */
+    Query<?> getTemplate(Class<?> cls, String text)
+    {
+        if (text == null || (cls == null && !isSelect(text)))
+        {
+            return null;
+        }
+        String key = cls != null ? cls.getName() + "|" + text : text;
+        CompletableFuture<Query<?>> future = templates.get(key);
+        if (future == null)
+        {
+            CompletableFuture<Query<?>> compiling = new CompletableFuture<>();
+            future = templates.putIfAbsent(key, compiling);
+            if (future == null)
+            {
+                misses.increment();
+                Query<?> template = null;
+                try
+                {
+                    template = compile(cls, text);
+                }
+                finally
+                {
+                    compiling.complete(template);
+                    if (template != null)
+                    {
+                        keys.add(key);
+                        evict();
+                    }
+                    else
+                    {
+                        templates.remove(key, compiling);
+                    }
+                }
+                return template;
+            }
+        }
+
+        hits.increment();
+        return future.join();
+    }
+
+    /**
+     * Method to compile the template of a query.
+     * @param cls The candidate class, or null for a single-string query
+     * @param text The single-string query or filter
+     * @return The template, or null if the query doesn't compile or is not a SELECT
+     */
+    Query<?> compile(Class<?> cls, String text)
+    {
+        PersistenceManager pm = getTemplatePersistenceManager();
+        if (pm == null)
+        {
+            return null;
+        }
+        Query<?> template;
+        try
+        {
+            template = cls != null ? pm.newQuery(cls, text) : pm.newQuery(text);
+            template.compile();
+        }
+        catch (JDOException e)
+        {
+            PersistenceManagerImpl.LOGGER.debug("Query not cached since it failed to compile : " + text + " : " + e);
+            return null;
+        }
+        if (((JDOQuery<?>)template).getInternalQuery().getType() != QueryType.SELECT)
+        {
+            // Bulk update/delete queries are not copied faithfully, so leave them uncached
+            template.closeAll();
+            return null;
+        }
+        template.setUnmodifiable();
+        return template;
+    }
+
+    /**
+     * Method to evict the oldest templates while the cache holds more than its maximum size.
+     */
+    private void evict()
+    {
+        while (templates.size() > maxSize)
+        {
+            String eldest = keys.poll();
+            if (eldest == null)
+            {
+                break;
+            }
+            CompletableFuture<Query<?>> evicted = templates.remove(eldest);
+            if (evicted != null && evicted.getNow(null) != null)
+            {
+                evicted.getNow(null).closeAll();
+            }
+        }
+    }
+
+    /**
+     * Accessor for the PersistenceManager owning the templates, creating it if needed.
+     * @return The PersistenceManager, or null if the PMF is closed
+     */
+    private synchronized PersistenceManager getTemplatePersistenceManager()
+    {
+        if (pmf.isClosed())
+        {
+            return null;
+        }
+        if (templatePm == null || templatePm.isClosed())
+        {
+            templatePm = pmf.getPersistenceManager();
+            templatePm.setMultithreaded(true);
+        }
+        return templatePm;
+    }
+
+    /**
+     * Convenience method to check whether a single-string query is a SELECT (rather than a bulk update or delete).
+     * @param query The single-string query
+     * @return Whether a SELECT query
+     */
+    private static boolean isSelect(String query)
+    {
+        String trimmed = query.trim();
+        return !trimmed.regionMatches(true, 0, "UPDATE", 0, 6) && !trimmed.regionMatches(true, 0, "DELETE", 0, 6);
+    }
+
+    int size()
+    {
+        return templates.size();
+    }
+
+    long getHits()
+    {
+        return hits.sum();
+    }
+
+    long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * Method to empty the cache, and close the PersistenceManager owning the templates.
+     */
+    synchronized void clear()
+    {
+        templates.clear();
+        keys.clear();
+        if (templatePm != null && !templatePm.isClosed())
+        {
+            templatePm.close();
+        }
+        templatePm = null;
+    }
+}
@@ -0,0 +1,109 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import java.util.Objects;
+
+import javax.resource.spi.ConnectionRequestInfo;
+
+/**
+ * Connection request information passed by {@link PersistenceManagerFactoryImpl} to the ConnectionManager,
+ * and handed back to {@link ManagedConnectionFactoryImpl} when creating and matching ManagedConnections.
+ * Two requests are equal when they would need the same type of ManagedConnection.
+ */
+public class ConnectionRequestInfoImpl implements ConnectionRequestInfo
+{
+    /** Request for a read-only connection, using the secondary (replica) connection factory. */
+    public static final ConnectionRequestInfoImpl READ_ONLY = new ConnectionRequestInfoImpl(true);
+
+    private final boolean readOnly;
+
+    private final String tenantId;
+
+    /**
+     * Constructor.
+     * @param readOnly Whether the connection is read-only
+     */
+    public ConnectionRequestInfoImpl(boolean readOnly)
+    {
+        this(readOnly, null);
+    }
+
+    /**
+     * Constructor.
+     * @param readOnly Whether the connection is read-only
+     * @param tenantId Tenant that the connection is for (or null for no specific tenant)
+     */
+    public ConnectionRequestInfoImpl(boolean readOnly, String tenantId)
+    {
+        this.readOnly = readOnly;
+        this.tenantId = tenantId;
+    }
+
+    /**
+     * Accessor for whether the requested connection is read-only.
+     * @return Whether read-only
+     */
+    public boolean isReadOnly()
+    {
+        return readOnly;
+    }
+
+    /**
+     * Accessor for the tenant that the connection is for.
+     * @return The tenant id, or null if not for a specific tenant
+     */
+    public String getTenantId()
+    {
+        return tenantId;
+    }
+
+    /**
+     * Convenience accessor for whether the provided request info is for a read-only connection.
+     * @param cri The request info (may be null)
+     * @return Whether read-only
+     */
+    static boolean isReadOnly(ConnectionRequestInfo cri)
+    {
+        return cri instanceof ConnectionRequestInfoImpl && ((ConnectionRequestInfoImpl)cri).readOnly;
+    }
+
+    public boolean equals(Object other)
+    {
+        if (this == other)
+        {
+            return true;
+        }
+        if (!(other instanceof ConnectionRequestInfoImpl))
+        {
+            return false;
+        }
+        ConnectionRequestInfoImpl otherCri = (ConnectionRequestInfoImpl)other;
+        return readOnly == otherCri.readOnly && Objects.equals(tenantId, otherCri.tenantId);
+    }
+
+    public int hashCode()
+    {
+        return Objects.hashCode(tenantId) * 31 + (readOnly ? 1 : 0);
+    }
+
+    public String toString()
+    {
+        return "ConnectionRequestInfo[readOnly=" + readOnly + (tenantId != null ? ", tenant=" + tenantId : "") + "]";
+    }
+}
@@ -18,7 +18,9 @@ Contributors:
 **********************************************************************/
 package org.datanucleus.jdo.connector;
 
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 
 import javax.jdo.JDOException;
@@ -51,20 +53,54 @@ public class ConnectionXAResource implements XAResource
      */
     public void commit(Xid xid, boolean flags) throws XAException
     {
-        PersistenceManagerImpl.LOGGER.debug("Committing DataNucleus XA Resource of transaction "+xid.toString()+" - one-phase: "+flags);
+        if (mc.isReadOnly())
+        {
+            return;
+        }
+        mc.trace(TraceBuffer.Event.XA_COMMIT, null, TraceBuffer.xid(xid, flags ? XAResource.TMONEPHASE : XAResource.TMNOFLAGS));
 
+        ConnectorEvents.XAResourceEvent event = new ConnectorEvents.XAResourceEvent();
+        event.begin();
+        boolean completed = false;
+        List<JDOPersistenceManager> pms = new ArrayList<>();
+        pms.add(table.remove(xid));
+        pms.addAll(mc.getShardPersistenceManagers());
+        int committed = 0;
         try 
         {
-            internalCommit(table.remove(xid));
+            for (JDOPersistenceManager pm : pms)
+            {
+                // The shards are committed one after the other (not prepared beforehand), so are not atomic across shards
+                internalCommit(pm);
+                committed++;
+            }
+            mc.transactionCompleted(true, xid);
+            completed = true;
         }
-        catch (JDOException e)
+        catch (JDOException | NucleusException e)
         {
             if (PersistenceManagerImpl.LOGGER.isInfoEnabled())
             {
                 PersistenceManagerImpl.LOGGER.info("Exception during commit: ", e);
             }
+            failed(TraceBuffer.Event.XA_COMMIT);
+            if (committed > 0)
+            {
+                // The shards before the failed one are committed and the others rolled back below
+                XAException xae = new XAException(XAException.XA_HEURMIX);
+                xae.initCause(e);
+                throw xae;
+            }
             throw new XAException(StringUtils.getStringFromStackTrace(e));
         }
+        finally
+        {
+            if (committed < pms.size())
+            {
+                mc.rollbackUncommitted(pms.subList(committed, pms.size()));
+            }
+            commitEvent(event, "commit", xid, flags ? XAResource.TMONEPHASE : XAResource.TMNOFLAGS, completed);
+        }
     }
 
     /**
@@ -76,9 +112,10 @@ public class ConnectionXAResource implements XAResource
         if (pm.getExecutionContext().getTransaction() == null)
         {
             PersistenceManagerImpl.LOGGER.error("Invalid state during commit invoke. Transaction is closed.");
+            failed(TraceBuffer.Event.PM_COMMIT);
             return;
         }
-        PersistenceManagerImpl.LOGGER.debug("Committing ManagedConnection "+this);
+        mc.trace(TraceBuffer.Event.PM_COMMIT, pm, 0);
         
         pm.getExecutionContext().getTransaction().commit();
     }
@@ -88,19 +125,62 @@ public class ConnectionXAResource implements XAResource
      */
     public void end(Xid xid, int flags) throws XAException
     {
-        PersistenceManagerImpl.LOGGER.debug("Ending DataNucleus XA Resource of transaction "+xid.toString()+" with flags "+flags);
-        
-        if (flags == XAResource.TMSUCCESS || flags == XAResource.TMSUSPEND)
+        if (mc.isReadOnly())
+        {
+            return;
+        }
+        mc.trace(TraceBuffer.Event.XA_END, null, TraceBuffer.xid(xid, flags));
+
+        ConnectorEvents.XAResourceEvent event = new ConnectorEvents.XAResourceEvent();
+        event.begin();
+        boolean completed = false;
+        try
         {
-            JDOPersistenceManager pm = table.get(xid);
-            try
+            if (flags == XAResource.TMSUCCESS || flags == XAResource.TMSUSPEND)
             {
-                pm.flush();
+                internalEnd(table.get(xid));
+                for (JDOPersistenceManager shardPm : mc.getShardPersistenceManagers())
+                {
+                    internalEnd(shardPm);
+                }
             }
-            finally
+            completed = true;
+        }
+        finally
+        {
+            if (!completed)
             {
-                pm.getExecutionContext().getTransaction().end();
+                failed(TraceBuffer.Event.XA_END);
             }
+            commitEvent(event, "end", xid, flags, completed);
+        }
+    }
+
+    /**
+     * Method to flush and end the Transaction
+     * @param pm PersistenceManager
+     */
+    private void internalEnd(JDOPersistenceManager pm)
+    {
+        try
+        {
+            pm.flush();
+        }
+        finally
+        {
+            pm.getExecutionContext().getTransaction().end();
+        }
+    }
+
+    /**
+     * Accessor for the transaction branches currently started on this resource.
+     * @return The Xids
+     */
+    List<Xid> getActiveXids()
+    {
+        synchronized (table)
+        {
+            return new ArrayList<>(table.keySet());
         }
     }
 
@@ -133,8 +213,13 @@ public class ConnectionXAResource implements XAResource
      */
     public int prepare(Xid xid) throws XAException
     {
-        PersistenceManagerImpl.LOGGER.debug("Preparing DataNucleus XA Resource of transaction "+xid.toString());
-        
+        if (mc.isReadOnly())
+        {
+            return XAResource.XA_RDONLY;
+        }
+        mc.trace(TraceBuffer.Event.XA_PREPARE, null, TraceBuffer.xid(xid, XAResource.TMNOFLAGS));
+
+        // Nothing is prepared (the work is done at commit, including on the other shards), so no XAResource event is recorded
         return XAResource.XA_OK;
     }
 
@@ -151,11 +236,24 @@ public class ConnectionXAResource implements XAResource
      */
     public void rollback(Xid xid) throws XAException
     {
-        PersistenceManagerImpl.LOGGER.debug("Rolling Back DataNucleus XA Resource of transaction "+xid.toString());
-        
+        if (mc.isReadOnly())
+        {
+            return;
+        }
+        mc.trace(TraceBuffer.Event.XA_ROLLBACK, null, TraceBuffer.xid(xid, XAResource.TMNOFLAGS));
+
+        ConnectorEvents.XAResourceEvent event = new ConnectorEvents.XAResourceEvent();
+        event.begin();
+        boolean completed = false;
         try
         {
             internalRollback(table.remove(xid));
+            for (JDOPersistenceManager shardPm : mc.getShardPersistenceManagers())
+            {
+                internalRollback(shardPm);
+            }
+            mc.transactionCompleted(false, xid);
+            completed = true;
         }
         catch (NucleusException e)
         {
@@ -163,8 +261,13 @@ public class ConnectionXAResource implements XAResource
             {
                 PersistenceManagerImpl.LOGGER.info("Exception during commit: ", e);
             }
+            failed(TraceBuffer.Event.XA_ROLLBACK);
             throw new XAException(StringUtils.getStringFromStackTrace(e));
         }
+        finally
+        {
+            commitEvent(event, "rollback", xid, XAResource.TMNOFLAGS, completed);
+        }
     }
     
     /**
@@ -176,9 +279,10 @@ public class ConnectionXAResource implements XAResource
         if (pm.getExecutionContext().getTransaction() == null)
         {
             PersistenceManagerImpl.LOGGER.error("Invalid state during rollback invoke. Transaction is closed.");
+            failed(TraceBuffer.Event.PM_ROLLBACK);
             return;
         }
-        PersistenceManagerImpl.LOGGER.debug("Rolling back ManagedConnection "+this);
+        mc.trace(TraceBuffer.Event.PM_ROLLBACK, pm, 0);
         
         pm.getExecutionContext().getTransaction().rollback();
     }    
@@ -188,8 +292,9 @@ public class ConnectionXAResource implements XAResource
      */
     public boolean setTransactionTimeout(int seconds) throws XAException
     {
-        PersistenceManagerImpl.LOGGER.debug("Setting DataNucleus XA Resource transaction timeout to "+seconds+" seconds, however transaction timeout is not supported.");
-        
+        // Transaction timeout is not supported
+        mc.trace(TraceBuffer.Event.XA_SET_TIMEOUT, null, seconds);
+
         return false;
     }
 
@@ -198,16 +303,65 @@ public class ConnectionXAResource implements XAResource
      */
     public void start(Xid xid, int flags) throws XAException
     {
-        PersistenceManagerImpl.LOGGER.debug("Starting DataNucleus XA Resource of transaction "+xid.toString()+" with flags "+flags);
+        if (mc.isReadOnly())
+        {
+            // Read-only connections never take part in the XA transaction, so no bookkeeping
+            return;
+        }
+        mc.trace(TraceBuffer.Event.XA_START, null, TraceBuffer.xid(xid, flags));
+        ConnectorEvents.XAResourceEvent event = new ConnectorEvents.XAResourceEvent();
+        event.begin();
+        boolean completed = false;
         table.put(xid,mc.getPersistenceManager());
         try
         {
         	internalStart(mc.getPersistenceManager());
+            for (JDOPersistenceManager shardPm : mc.getShardPersistenceManagers())
+            {
+                internalStart(shardPm);
+            }
+            completed = true;
         }
         catch (JDOException e)
         {
+            failed(TraceBuffer.Event.XA_START);
             throw new XAException("JDOException: " + e);
         }  
+        finally
+        {
+            commitEvent(event, "start", xid, flags, completed);
+        }
+    }
+
+    /**
+     * Method to record the failure of an operation in the trace of the connection, and log the trace.
+     * @param event The operation that failed
+     */
+    private void failed(TraceBuffer.Event event)
+    {
+        mc.trace(TraceBuffer.Event.FAILED, null, event.ordinal());
+        mc.logTrace(event + " failed");
+    }
+
+    /**
+     * Method to complete the JFR event of an XA operation, populating it only when it is to be recorded.
+     * @param event The event
+     * @param operation Name of the XA operation
+     * @param xid The transaction branch
+     * @param flags Flags of the operation
+     * @param completed Whether the operation completed successfully
+     */
+    private void commitEvent(ConnectorEvents.XAResourceEvent event, String operation, Xid xid, int flags, boolean completed)
+    {
+        if (event.shouldCommit())
+        {
+            event.operation = operation;
+            event.xid = String.valueOf(xid);
+            event.flags = flags;
+            event.managedConnection = ConnectorEvents.identity(mc);
+            event.failed = !completed;
+            event.commit();
+        }
     }
     
     /**
@@ -220,9 +374,10 @@ public class ConnectionXAResource implements XAResource
         if (tx == null)
         {
             PersistenceManagerImpl.LOGGER.error("Invalid state during begin invoke. Transaction is closed.");
+            failed(TraceBuffer.Event.PM_BEGIN);
             return;
         }
-        PersistenceManagerImpl.LOGGER.debug("Beginning ManagedConnection "+this);
+        mc.trace(TraceBuffer.Event.PM_BEGIN, pm, 0);
         if (!tx.isActive())
         {
         	tx.begin();
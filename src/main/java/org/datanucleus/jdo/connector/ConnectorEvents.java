@@ -0,0 +1,114 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder events of the connector. Each event is created and begun before the operation, and only
+ * populated and committed when {@link Event#shouldCommit()}, so that disabled events cost next to nothing.
+ */
+final class ConnectorEvents
+{
+    private ConnectorEvents()
+    {
+    }
+
+    /**
+     * Convenience method giving the identity of an object, as recorded in events.
+     * @param obj The object (or null)
+     * @return Identity string (class name and identity hash code)
+     */
+    static String identity(Object obj)
+    {
+        return obj != null ? obj.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(obj)) : null;
+    }
+
+    @Name("org.datanucleus.jca.ConnectionAllocation")
+    @Label("Connection Allocation")
+    @Category({"DataNucleus", "JCA"})
+    @Description("Connection handle obtained from a ManagedConnection")
+    static class ConnectionAllocationEvent extends Event
+    {
+        @Label("Managed Connection")
+        String managedConnection;
+
+        @Label("Handle")
+        String handle;
+    }
+
+    @Name("org.datanucleus.jca.HandleClose")
+    @Label("Handle Close")
+    @Category({"DataNucleus", "JCA"})
+    @Description("Connection handle closed, including its flush")
+    static class HandleCloseEvent extends Event
+    {
+        @Label("Managed Connection")
+        String managedConnection;
+
+        @Label("Handle")
+        String handle;
+
+        @Label("Flush Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long flushDuration;
+    }
+
+    @Name("org.datanucleus.jca.XAResource")
+    @Label("XA Resource Operation")
+    @Category({"DataNucleus", "JCA"})
+    @Description("Call of the container on the XAResource of a ManagedConnection")
+    static class XAResourceEvent extends Event
+    {
+        @Label("Operation")
+        String operation;
+
+        @Label("Xid")
+        String xid;
+
+        @Label("Flags")
+        int flags;
+
+        @Label("Managed Connection")
+        String managedConnection;
+
+        @Label("Failed")
+        boolean failed;
+    }
+
+    @Name("org.datanucleus.jca.LocalTransaction")
+    @Label("Local Transaction Operation")
+    @Category({"DataNucleus", "JCA"})
+    @Description("Call of the container on the LocalTransaction of a ManagedConnection")
+    static class LocalTransactionEvent extends Event
+    {
+        @Label("Operation")
+        String operation;
+
+        @Label("Managed Connection")
+        String managedConnection;
+
+        @Label("Failed")
+        boolean failed;
+    }
+}
@@ -0,0 +1,332 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.jdo.Constants;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.transaction.xa.Xid;
+
+/**
+ * Statistics of a {@link ManagedConnectionFactoryImpl} and its live ManagedConnections, exposed over JMX.
+ * Counters updated on the connection paths are LongAdders so that concurrent updates don't contend.
+ */
+public class ConnectorStatistics implements ConnectorStatisticsMBean
+{
+    /** Number of the last connection factory registered, distinguishing factories for the same persistence unit. */
+    private static final AtomicInteger INSTANCE_NUMBER = new AtomicInteger();
+
+    private final ManagedConnectionFactoryImpl mcf;
+
+    private final Set<ManagedConnectionImpl> liveConnections = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder connectionsCreated = new LongAdder();
+
+    private final LongAdder connectionsDestroyed = new LongAdder();
+
+    private final LongAdder connectionsCleanedUp = new LongAdder();
+
+    private final LongAdder handlesCreated = new LongAdder();
+
+    private final LongAdder operationsServed = new LongAdder();
+
+    private final LongAdder transactionsCommitted = new LongAdder();
+
+    private final LongAdder transactionsRolledBack = new LongAdder();
+
+    private final QueryStatistics queryStatistics;
+
+    private ObjectName objectName;
+
+    /** Periodic dump of the query statistics to the log. Null when not dumping. */
+    private ScheduledFuture<?> queryStatisticsDump;
+
+    ConnectorStatistics(ManagedConnectionFactoryImpl mcf)
+    {
+        this.mcf = mcf;
+        this.queryStatistics = new QueryStatistics(mcf);
+    }
+
+    void connectionCreated(ManagedConnectionImpl mc)
+    {
+        connectionsCreated.increment();
+        liveConnections.add(mc);
+    }
+
+    void connectionDestroyed(ManagedConnectionImpl mc)
+    {
+        if (liveConnections.remove(mc))
+        {
+            connectionsDestroyed.increment();
+        }
+    }
+
+    void connectionCleanedUp()
+    {
+        connectionsCleanedUp.increment();
+    }
+
+    void handleCreated()
+    {
+        handlesCreated.increment();
+    }
+
+    void operationServed()
+    {
+        operationsServed.increment();
+    }
+
+    void transactionCompleted(boolean committed)
+    {
+        (committed ? transactionsCommitted : transactionsRolledBack).increment();
+    }
+
+    /**
+     * Accessor for the latency and result size histograms of the queries executed through connection handles.
+     * @return The query statistics
+     */
+    QueryStatistics getQueryStatistics()
+    {
+        return queryStatistics;
+    }
+
+    /**
+     * Accessor for the ManagedConnections not yet destroyed.
+     * @return The live ManagedConnections
+     */
+    Set<ManagedConnectionImpl> getLiveConnectionSet()
+    {
+        return liveConnections;
+    }
+
+    /**
+     * Method to register this MBean in the platform MBeanServer. Its name has the persistence unit name and an instance
+     * number, so that connection factories for the same persistence unit (such as from a redeployment, or in another
+     * application) each have their own MBean.
+     * @param name Name to distinguish this connection factory, typically the persistence unit name
+     */
+    synchronized void register(String name)
+    {
+        if (objectName != null)
+        {
+            return;
+        }
+        try
+        {
+            ObjectName on = new ObjectName("org.datanucleus.jca:type=ManagedConnectionFactory,name=" + ObjectName.quote(name != null ? name : "default") +
+                ",instance=" + INSTANCE_NUMBER.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+            objectName = on;
+        }
+        catch (JMException | SecurityException e)
+        {
+            PersistenceManagerImpl.LOGGER.warn("Unable to register JMX MBean for the connection factory", e);
+        }
+
+        if (mcf.queryStatistics && mcf.queryStatisticsDumpInterval > 0)
+        {
+            queryStatisticsDump = mcf.getScheduler().scheduleAtFixedRate(queryStatistics::dump,
+                mcf.queryStatisticsDumpInterval, mcf.queryStatisticsDumpInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Method to unregister this MBean, if registered.
+     */
+    synchronized void unregister()
+    {
+        if (queryStatisticsDump != null)
+        {
+            queryStatisticsDump.cancel(false);
+            queryStatisticsDump = null;
+        }
+        if (objectName != null)
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+            catch (JMException | SecurityException e)
+            {
+                PersistenceManagerImpl.LOGGER.debug("Unable to unregister JMX MBean " + objectName + " : " + e);
+            }
+            objectName = null;
+        }
+    }
+
+    public String getPersistenceManagerFactoryState()
+    {
+        return mcf.getPersistenceManagerFactoryState();
+    }
+
+    public String getPersistenceUnitName()
+    {
+        return mcf.properties.getProperty(Constants.PROPERTY_PERSISTENCE_UNIT_NAME);
+    }
+
+    public long getConnectionsCreated()
+    {
+        return connectionsCreated.sum();
+    }
+
+    public long getConnectionsDestroyed()
+    {
+        return connectionsDestroyed.sum();
+    }
+
+    public long getConnectionsCleanedUp()
+    {
+        return connectionsCleanedUp.sum();
+    }
+
+    public long getHandlesCreated()
+    {
+        return handlesCreated.sum();
+    }
+
+    public long getOperationsServed()
+    {
+        return operationsServed.sum();
+    }
+
+    public long getTransactionsCommitted()
+    {
+        return transactionsCommitted.sum();
+    }
+
+    public long getTransactionsRolledBack()
+    {
+        return transactionsRolledBack.sum();
+    }
+
+    public int getLiveConnections()
+    {
+        return liveConnections.size();
+    }
+
+    public int getLiveHandles()
+    {
+        int count = 0;
+        for (ManagedConnectionImpl mc : liveConnections)
+        {
+            count += mc.getHandleCount();
+        }
+        return count;
+    }
+
+    public int getActiveXids()
+    {
+        int count = 0;
+        for (ManagedConnectionImpl mc : liveConnections)
+        {
+            count += mc.getActiveXids().size();
+        }
+        return count;
+    }
+
+    public String[] getConnectionDetails()
+    {
+        List<String> details = new ArrayList<>();
+        for (ManagedConnectionImpl mc : liveConnections)
+        {
+            details.add(mc + " " + mc.getMetaData() + " xids=" + mc.getActiveXids() +
+                (mc.isReadOnly() ? " readOnly" : "") + (mc.getTenantId() != null ? " tenant=" + mc.getTenantId() : ""));
+        }
+        return details.toArray(new String[details.size()]);
+    }
+
+    public String[] getActiveXidList()
+    {
+        List<String> xids = new ArrayList<>();
+        for (ManagedConnectionImpl mc : liveConnections)
+        {
+            for (Xid xid : mc.getActiveXids())
+            {
+                xids.add(xid.toString());
+            }
+        }
+        return xids.toArray(new String[xids.size()]);
+    }
+
+    public int getQueryShapes()
+    {
+        return queryStatistics.getShapeCount();
+    }
+
+    public String[] getQueryHistograms()
+    {
+        return queryStatistics.report();
+    }
+
+    public void resetQueryHistograms()
+    {
+        queryStatistics.reset();
+    }
+
+    public int getQueryCacheSize()
+    {
+        CompiledQueryCache queryCache = mcf.queryCache;
+        return queryCache != null ? queryCache.size() : 0;
+    }
+
+    public long getQueryCacheHits()
+    {
+        CompiledQueryCache queryCache = mcf.queryCache;
+        return queryCache != null ? queryCache.getHits() : 0;
+    }
+
+    public long getQueryCacheMisses()
+    {
+        CompiledQueryCache queryCache = mcf.queryCache;
+        return queryCache != null ? queryCache.getMisses() : 0;
+    }
+
+    public String[] dumpConnectionTraces()
+    {
+        List<String> lines = new ArrayList<>();
+        for (ManagedConnectionImpl mc : liveConnections)
+        {
+            lines.add(mc.toString());
+            for (String record : mc.getTrace())
+            {
+                lines.add("  " + record);
+            }
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    public int getTrackedHandles()
+    {
+        return mcf.leakDetector.getOpenHandleCount();
+    }
+
+    public String[] findLeakedHandles()
+    {
+        return mcf.leakDetector.getLeakedHandles();
+    }
+}
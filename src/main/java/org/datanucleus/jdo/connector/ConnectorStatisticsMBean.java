@@ -0,0 +1,93 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+/**
+ * Management interface of a {@link ManagedConnectionFactoryImpl}, registered in the platform MBeanServer.
+ */
+public interface ConnectorStatisticsMBean
+{
+    /** @return State of the PMF : NOT_STARTED, STARTING, OPEN or CLOSED */
+    String getPersistenceManagerFactoryState();
+
+    /** @return Name of the persistence unit (or null) */
+    String getPersistenceUnitName();
+
+    /** @return Number of ManagedConnections created */
+    long getConnectionsCreated();
+
+    /** @return Number of ManagedConnections destroyed */
+    long getConnectionsDestroyed();
+
+    /** @return Number of times a ManagedConnection was cleaned up to be returned to the pool */
+    long getConnectionsCleanedUp();
+
+    /** @return Number of connection handles (PersistenceManagers) handed out */
+    long getHandlesCreated();
+
+    /** @return Number of operations invoked through connection handles */
+    long getOperationsServed();
+
+    /** @return Number of transactions committed */
+    long getTransactionsCommitted();
+
+    /** @return Number of transactions rolled back */
+    long getTransactionsRolledBack();
+
+    /** @return Number of ManagedConnections not yet destroyed */
+    int getLiveConnections();
+
+    /** @return Number of handles currently associated with the live ManagedConnections */
+    int getLiveHandles();
+
+    /** @return Number of XA transaction branches currently started on the live ManagedConnections */
+    int getActiveXids();
+
+    /** @return Description of each live ManagedConnection, with its handles and active Xids */
+    String[] getConnectionDetails();
+
+    /** @return The active XA transaction branches */
+    String[] getActiveXidList();
+
+    /** @return Number of query shapes (queries with literals removed) with recorded executions */
+    int getQueryShapes();
+
+    /** @return Latency and result size histogram summary of each query shape, slowest (by p99 latency) first */
+    String[] getQueryHistograms();
+
+    /** Operation to clear the query histograms. */
+    void resetQueryHistograms();
+
+    /** @return Number of compiled queries in the connector query cache */
+    int getQueryCacheSize();
+
+    /** @return Number of queries created from the connector query cache */
+    long getQueryCacheHits();
+
+    /** @return Number of queries not found in the connector query cache */
+    long getQueryCacheMisses();
+
+    /** @return Recent trace records of each live ManagedConnection, oldest first */
+    String[] dumpConnectionTraces();
+
+    /** @return Number of open handles tracked by leak detection */
+    int getTrackedHandles();
+
+    /** @return Description (with allocation stack when sampled) of each open handle held longer than the leak detection threshold */
+    String[] findLeakedHandles();
+}
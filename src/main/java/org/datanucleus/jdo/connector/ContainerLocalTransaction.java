@@ -18,10 +18,16 @@ Contributors:
 **********************************************************************/
 package org.datanucleus.jdo.connector;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.jdo.JDOException;
+import javax.jdo.JDOFatalDataStoreException;
 import javax.resource.ResourceException;
 import javax.resource.spi.LocalTransaction;
 
+import org.datanucleus.api.jdo.JDOPersistenceManager;
+
 /**
  * Container-demarcated local transaction. Starts the LocalTransaction of the Resource. 
  * The JCA container uses this interface to control the lifecycle of local transactions.
@@ -42,15 +48,24 @@ public class ContainerLocalTransaction implements LocalTransaction
     public void begin()
     throws ResourceException
     {
-        PersistenceManagerImpl.LOGGER.debug("LocalResource.begin()");
+        mc.trace(TraceBuffer.Event.LOCAL_BEGIN, null, 0);
+        ConnectorEvents.LocalTransactionEvent event = new ConnectorEvents.LocalTransactionEvent();
+        event.begin();
+        boolean completed = false;
         try 
         {
             internalBegin();
+            completed = true;
         }
         catch (JDOException e)
         {
+            failed(TraceBuffer.Event.LOCAL_BEGIN);
             throw new ResourceException("JDOException: " + e);
         }
+        finally
+        {
+            commitEvent(event, "begin", completed);
+        }
     }
 
     /**
@@ -60,10 +75,14 @@ public class ContainerLocalTransaction implements LocalTransaction
     public void commit()
     throws ResourceException
     {
-        PersistenceManagerImpl.LOGGER.debug("LocalResource.commit()");
+        mc.trace(TraceBuffer.Event.LOCAL_COMMIT, null, 0);
+        ConnectorEvents.LocalTransactionEvent event = new ConnectorEvents.LocalTransactionEvent();
+        event.begin();
+        boolean completed = false;
         try 
         {
             internalCommit();
+            completed = true;
         }
         catch (JDOException e)
         {
@@ -71,9 +90,15 @@ public class ContainerLocalTransaction implements LocalTransaction
             {
                 PersistenceManagerImpl.LOGGER.info("Exception during commit: ", e);
             }
+            failed(TraceBuffer.Event.LOCAL_COMMIT);
             throw new ResourceException("JDOException: " + e);
         }
+        finally
+        {
+            commitEvent(event, "commit", completed);
+        }
 
+        mc.transactionCompleted(true, null);
         mc.notifyCommit();
         mc.clearHandles();
     }
@@ -85,10 +110,14 @@ public class ContainerLocalTransaction implements LocalTransaction
     public void rollback()
     throws ResourceException
     {
-        PersistenceManagerImpl.LOGGER.debug("Local Resource.rollback()");
+        mc.trace(TraceBuffer.Event.LOCAL_ROLLBACK, null, 0);
+        ConnectorEvents.LocalTransactionEvent event = new ConnectorEvents.LocalTransactionEvent();
+        event.begin();
+        boolean completed = false;
         try 
         {
             internalRollback();
+            completed = true;
         }
         catch (JDOException e)
         {
@@ -96,8 +125,41 @@ public class ContainerLocalTransaction implements LocalTransaction
             {
                 PersistenceManagerImpl.LOGGER.info("Exception during rollback: ", e);
             }
+            failed(TraceBuffer.Event.LOCAL_ROLLBACK);
             throw new ResourceException("JDOException: " + e);
         }
+        finally
+        {
+            commitEvent(event, "rollback", completed);
+        }
+        mc.transactionCompleted(false, null);
+    }
+
+    /**
+     * Method to record the failure of an operation in the trace of the connection, and log the trace.
+     * @param event The operation that failed
+     */
+    private void failed(TraceBuffer.Event event)
+    {
+        mc.trace(TraceBuffer.Event.FAILED, null, event.ordinal());
+        mc.logTrace(event + " failed");
+    }
+
+    /**
+     * Method to complete the JFR event of a local transaction operation, populating it only when it is to be recorded.
+     * @param event The event
+     * @param operation Name of the operation
+     * @param completed Whether the operation completed successfully
+     */
+    private void commitEvent(ConnectorEvents.LocalTransactionEvent event, String operation, boolean completed)
+    {
+        if (event.shouldCommit())
+        {
+            event.operation = operation;
+            event.managedConnection = ConnectorEvents.identity(mc);
+            event.failed = !completed;
+            event.commit();
+        }
     }
 
     /**
@@ -105,14 +167,23 @@ public class ContainerLocalTransaction implements LocalTransaction
      */
     public void internalRollback()
     {
+        if (mc.isReadOnly())
+        {
+            return;
+        }
         if (mc.getPersistenceManager().getExecutionContext().getTransaction() == null)
         {
             PersistenceManagerImpl.LOGGER.error("Invalid state during rollback invoke. Transaction is closed.");
+            failed(TraceBuffer.Event.PM_ROLLBACK);
             return;
         }
-        PersistenceManagerImpl.LOGGER.debug("Rolling back ManagedConnection "+this);
+        mc.trace(TraceBuffer.Event.PM_ROLLBACK, mc.getPersistenceManager(), 0);
         
         mc.getPersistenceManager().getExecutionContext().getTransaction().rollback();
+        for (JDOPersistenceManager shardPm : mc.getShardPersistenceManagers())
+        {
+            shardPm.getExecutionContext().getTransaction().rollback();
+        }
     } 
     
     /**
@@ -120,16 +191,28 @@ public class ContainerLocalTransaction implements LocalTransaction
      */
     public void internalBegin()
     {
+        if (mc.isReadOnly())
+        {
+            return;
+        }
         if (mc.getPersistenceManager().getExecutionContext().getTransaction() == null)
         {
             PersistenceManagerImpl.LOGGER.error("Invalid state during begin invoke. Transaction is closed.");
+            failed(TraceBuffer.Event.PM_BEGIN);
             return;
         }
-        PersistenceManagerImpl.LOGGER.debug("Beginning ManagedConnection "+this);
+        mc.trace(TraceBuffer.Event.PM_BEGIN, mc.getPersistenceManager(), 0);
         if (!mc.getPersistenceManager().getExecutionContext().getTransaction().isActive())
         {
         	mc.getPersistenceManager().getExecutionContext().getTransaction().begin();
         }
+        for (JDOPersistenceManager shardPm : mc.getShardPersistenceManagers())
+        {
+            if (!shardPm.getExecutionContext().getTransaction().isActive())
+            {
+                shardPm.getExecutionContext().getTransaction().begin();
+            }
+        }
     }
     
     /**
@@ -137,13 +220,46 @@ public class ContainerLocalTransaction implements LocalTransaction
      */
     public void internalCommit()
     {
+        if (mc.isReadOnly())
+        {
+            return;
+        }
         if (mc.getPersistenceManager().getExecutionContext().getTransaction() == null)
         {
             PersistenceManagerImpl.LOGGER.error("Invalid state during commit invoke. Transaction is closed.");
+            failed(TraceBuffer.Event.PM_COMMIT);
             return;
         }
-        PersistenceManagerImpl.LOGGER.debug("Committing ManagedConnection "+this);
+        mc.trace(TraceBuffer.Event.PM_COMMIT, mc.getPersistenceManager(), 0);
         
-        mc.getPersistenceManager().getExecutionContext().getTransaction().commit();
+        List<JDOPersistenceManager> pms = new ArrayList<>();
+        pms.add(mc.getPersistenceManager());
+        pms.addAll(mc.getShardPersistenceManagers());
+        int committed = 0;
+        try
+        {
+            for (JDOPersistenceManager pm : pms)
+            {
+                // Local transactions are committed one shard after the other, so are not atomic across shards
+                pm.getExecutionContext().getTransaction().commit();
+                committed++;
+            }
+        }
+        catch (RuntimeException e)
+        {
+            if (committed > 0)
+            {
+                throw new JDOFatalDataStoreException("Transaction committed on " + committed + " of " + pms.size() +
+                    " shards only, the other shards were rolled back", e);
+            }
+            throw e;
+        }
+        finally
+        {
+            if (committed < pms.size())
+            {
+                mc.rollbackUncommitted(pms.subList(committed, pms.size()));
+            }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,41 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import org.datanucleus.identity.IdentityUtils;
+
+/**
+ * Default {@link ShardResolver}, spreading objects over the shards by the hash code of the key of their identity.
+ * For single-field and datastore identity only the key is used, so the same key gives the same shard whatever the class.
+ */
+public class HashShardResolver implements ShardResolver
+{
+    public int getShard(Object id, int numberOfShards)
+    {
+        Object key = id;
+        if (IdentityUtils.isSingleFieldIdentity(id))
+        {
+            key = IdentityUtils.getTargetKeyForSingleFieldIdentity(id);
+        }
+        else if (IdentityUtils.isDatastoreIdentity(id))
+        {
+            key = IdentityUtils.getTargetKeyForDatastoreIdentity(id);
+        }
+        return Math.floorMod(key.hashCode(), numberOfShards);
+    }
+}
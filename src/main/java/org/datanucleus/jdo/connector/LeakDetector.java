@@ -0,0 +1,202 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detector of connection handles that the application doesn't close. When enabled, open handles are tracked with their
+ * allocation time, and the allocation call stack is captured for one in every {@link #setStackSampling(int) so many}
+ * handles. Handles held longer than the threshold are reported (once each) by a periodic check, and handles that the
+ * container reclaims without them having been closed are reported when reclaimed.
+ */
+class LeakDetector
+{
+    private final Set<PersistenceManagerImpl> openHandles = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong handlesOpened = new AtomicLong();
+
+    /** Time (millisecs) a handle can be held before being reported. 0 when not detecting leaks. */
+    private volatile long thresholdMillis = 0;
+
+    private volatile int stackSampling = 10;
+
+    private ScheduledFuture<?> check;
+
+    /**
+     * Mutator for the time a handle can be held open before being reported as a possible leak.
+     * @param seconds The threshold in seconds, or 0 to not detect leaks
+     */
+    void setThreshold(int seconds)
+    {
+        this.thresholdMillis = TimeUnit.SECONDS.toMillis(seconds);
+    }
+
+    /**
+     * Mutator for how often the allocation call stack of a handle is captured.
+     * @param sampling Capture the call stack of one in this number of handles (0 for never)
+     */
+    void setStackSampling(int sampling)
+    {
+        this.stackSampling = sampling;
+    }
+
+    boolean isEnabled()
+    {
+        return thresholdMillis > 0;
+    }
+
+    /**
+     * Method to start the periodic check for handles held longer than the threshold, if enabled.
+     * @param scheduler Scheduler to run the check with
+     */
+    synchronized void start(ScheduledExecutorService scheduler)
+    {
+        if (check == null && isEnabled())
+        {
+            long period = Math.max(1000, thresholdMillis / 2);
+            check = scheduler.scheduleWithFixedDelay(this::check, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Method to stop the periodic check.
+     */
+    synchronized void stop()
+    {
+        if (check != null)
+        {
+            check.cancel(false);
+            check = null;
+        }
+        openHandles.clear();
+    }
+
+    /**
+     * Method to call when a handle is obtained by the application.
+     * @param handle The handle
+     */
+    void handleOpened(PersistenceManagerImpl handle)
+    {
+        if (!isEnabled())
+        {
+            return;
+        }
+        int sampling = stackSampling;
+        if (sampling > 0 && handlesOpened.getAndIncrement() % sampling == 0)
+        {
+            handle.allocationStack = new Throwable("Allocation of connection handle " + ConnectorEvents.identity(handle));
+        }
+        openHandles.add(handle);
+    }
+
+    /**
+     * Method to call when a handle is closed by the application.
+     * @param handle The handle
+     */
+    void handleClosed(PersistenceManagerImpl handle)
+    {
+        if (openHandles.remove(handle) && handle.leakReported)
+        {
+            PersistenceManagerImpl.LOGGER.info("Connection handle " + ConnectorEvents.identity(handle) +
+                " previously reported as possibly leaked was closed after " + getAge(handle, System.currentTimeMillis()) + "ms");
+        }
+    }
+
+    /**
+     * Method to call when the container cleans up or destroys a ManagedConnection that still has a handle that the
+     * application didn't close.
+     * @param handle The handle
+     * @param how What the container did with the ManagedConnection
+     */
+    void handleReclaimed(PersistenceManagerImpl handle, String how)
+    {
+        if (openHandles.remove(handle))
+        {
+            PersistenceManagerImpl.LOGGER.warn("Connection handle " + ConnectorEvents.identity(handle) + " obtained " +
+                getAge(handle, System.currentTimeMillis()) + "ms ago was not closed by the application, and its ManagedConnection was " +
+                how + " by the container" + (handle.allocationStack != null ? "" : " (allocation stack not sampled)"), handle.allocationStack);
+        }
+    }
+
+    /**
+     * Method to report the handles held longer than the threshold that weren't yet reported.
+     */
+    void check()
+    {
+        long now = System.currentTimeMillis();
+        for (PersistenceManagerImpl handle : openHandles)
+        {
+            if (!handle.leakReported && getAge(handle, now) > thresholdMillis)
+            {
+                handle.leakReported = true;
+                PersistenceManagerImpl.LOGGER.warn("Possible connection leak : " + describe(handle, now) +
+                    (handle.allocationStack != null ? "" : " (allocation stack not sampled)"), handle.allocationStack);
+            }
+        }
+    }
+
+    /**
+     * Accessor for a description of each open handle held longer than the threshold, whether reported or not.
+     * @return The descriptions
+     */
+    String[] getLeakedHandles()
+    {
+        long now = System.currentTimeMillis();
+        List<String> leaks = new ArrayList<>();
+        for (PersistenceManagerImpl handle : openHandles)
+        {
+            if (getAge(handle, now) > thresholdMillis)
+            {
+                StringBuilder str = new StringBuilder(describe(handle, now));
+                if (handle.allocationStack != null)
+                {
+                    for (StackTraceElement element : handle.allocationStack.getStackTrace())
+                    {
+                        str.append("\n    at ").append(element);
+                    }
+                }
+                leaks.add(str.toString());
+            }
+        }
+        return leaks.toArray(new String[leaks.size()]);
+    }
+
+    int getOpenHandleCount()
+    {
+        return openHandles.size();
+    }
+
+    private static long getAge(PersistenceManagerImpl handle, long now)
+    {
+        return now - handle.allocationTime;
+    }
+
+    private static String describe(PersistenceManagerImpl handle, long now)
+    {
+        return "handle " + ConnectorEvents.identity(handle) + " open for " + getAge(handle, now) + "ms [" +
+            SlowOperationDetector.getTransactionContext(handle.mc) + "]";
+    }
+}
@@ -18,9 +18,33 @@ Contributors:
 package org.datanucleus.jdo.connector;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jdo.Constants;
 import javax.resource.ResourceException;
@@ -31,10 +55,18 @@ import javax.resource.spi.ManagedConnectionFactory;
 import javax.resource.spi.security.PasswordCredential;
 import javax.security.auth.Subject;
 
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.PersistenceNucleusContext;
 import org.datanucleus.PropertyNames;
 import org.datanucleus.api.jdo.JDOPersistenceManagerFactory;
 import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.ClassPersistenceModifier;
+import org.datanucleus.metadata.MetaDataManager;
+import org.datanucleus.metadata.PersistenceUnitMetaData;
 import org.datanucleus.metadata.TransactionType;
+import org.datanucleus.store.rdbms.RDBMSPropertyNames;
+import org.datanucleus.util.StringUtils;
 
 /**
  * Implementation of the JCA adapter for use in J2EE environments.
@@ -45,51 +77,859 @@ public class ManagedConnectionFactoryImpl implements ManagedConnectionFactory
 {
     private static final long serialVersionUID = 318962833424682326L;
     JDOPersistenceManagerFactory pmf;
+
+    /** PMF for read-only connections, using the secondary connection factory. Created on first use. */
+    JDOPersistenceManagerFactory readOnlyPmf;
+
     Properties properties = new Properties();
     boolean configurable = true;
 
-    public ManagedConnectionFactoryImpl() 
+    /** JNDI name pattern for tenant connection factories, with "{tenant}" replaced by the tenant id. */
+    String tenantConnectionFactoryName;
+
+    /** Maximum number of tenant PMFs to keep open, before closing idle ones. */
+    int maxTenants = 50;
+
+    /** Whether to use the user name of the Subject's credential as the tenant id when the request doesn't specify one. */
+    boolean tenantIdFromSubject = false;
+
+    /** Persistence unit classes without multitenancy metadata, computed when first needed to share the PMF between tenants. */
+    private volatile List<String> nonMultitenantClasses;
+
+    /** Tenant PMFs keyed by tenant id, in least-recently-used order. Only used when tenantConnectionFactoryName is set. */
+    private final Map<String, TenantPersistenceManagerFactory> tenantPmfs = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Comma-separated JNDI names of the connection factories of the shards, when sharded. */
+    String shardConnectionFactoryNames;
+
+    /** Name of the {@link ShardResolver} class to use when sharded. */
+    String shardResolverClass = HashShardResolver.class.getName();
+
+    /** PMFs for the shards, with the primary PMF as shard 0. Null when not sharded. */
+    JDOPersistenceManagerFactory[] shardPmfs;
+
+    ShardResolver shardResolver;
+
+    /** Whether to create the PMF in the background when the connection factory is created. */
+    boolean asyncBootstrap = false;
+
+    /** Creation of the PMF(s). Started by createConnectionFactory when asyncBootstrap, otherwise by the first freezeConfiguration. */
+    private FutureTask<Void> bootstrap;
+
+    /** Whether creation of the PMF has completed. */
+    private volatile boolean bootstrapped = false;
+
+    /** Preparation of each persistence unit class, keyed by class name. Null when not (or no longer) preparing classes in the background. */
+    private volatile Map<String, FutureTask<Void>> classWarmups;
+
+    /** File storing the schema fingerprint, when schema checks are to be skipped while the schema is unchanged. */
+    String schemaFingerprintFile;
+
+    /** Version of the datastore schema maintained by the application, part of the schema fingerprint. */
+    String schemaVersion;
+
+    /** Schema properties of the primary PMF as configured, when switched off there by an unchanged schema fingerprint. */
+    private Map<String, Object> skippedSchemaChecks = Collections.emptyMap();
+
+    /** Whether to record latency and result size histograms of the queries executed through connection handles. */
+    boolean queryStatistics = false;
+
+    /** Interval (seconds) at which to log the query histograms. 0 for never. */
+    int queryStatisticsDumpInterval = 0;
+
+    /** Detector of slow operations on connection handles. */
+    final SlowOperationDetector slowOperations = new SlowOperationDetector();
+
+    /** Detector of connection handles not closed by the application. */
+    final LeakDetector leakDetector = new LeakDetector();
+
+    /** Comma-separated names of {@link TransactionCostListener} classes to notify of the cost of each transaction. */
+    String transactionCostListeners;
+
+    /** Whether to log the cost of each transaction. */
+    boolean transactionCostLogging = false;
+
+    /** Number of single-object fetches of a class in a transaction reported as an N+1 pattern. 0 for no detection. */
+    int nPlusOneThreshold = 0;
+
+    /** Whether to add the relation navigated in an N+1 pattern to the fetch plan for the rest of the transaction. */
+    boolean nPlusOneAutoFetch = false;
+
+    /** Maximum number of objects loaded per query by getObjectsById, retrieveAll and refreshAll. 0 for no batching. */
+    int batchLoadSize = 0;
+
+    /** Time (microseconds) over which concurrent getObjectById calls on a handle outside of a transaction are coalesced. 0 for none. */
+    int coalescingWindow = 0;
+
+    /** Number of objects managed by a transaction at which it is flushed and its clean objects evicted. 0 for never. */
+    int footprintThreshold = 0;
+
+    /** Maximum number of prepared statements cached per pooled datastore connection. 0 for no cache. */
+    int statementCacheSize = 0;
+
+    /** Whether to compile all named queries when creating the PMF. */
+    boolean precompileNamedQueries = false;
+
+    /** Maximum number of compiled queries cached for the connection handles. 0 for no cache. */
+    int queryCacheSize = 1000;
+
+    /** Compiled queries shared by all connection handles. Null when not caching queries, or not yet bootstrapped. */
+    volatile CompiledQueryCache queryCache;
+
+    /** Listeners notified of the cost of each transaction. */
+    private final List<TransactionCostListener> costListeners = new CopyOnWriteArrayList<>();
+
+    /** Statistics of this connection factory, exposed over JMX. */
+    final ConnectorStatistics statistics = new ConnectorStatistics(this);
+
+    /** Executor for work done in parallel by the connector. Created on first use. */
+    private ExecutorService executor;
+
+    /** Maximum number of threads running asynchronous operations of connection handles. 0 for twice the number of processors. */
+    int asyncThreads = 0;
+
+    /** Executor for asynchronous operations of connection handles. Created on first use. */
+    private ExecutorService asyncExecutor;
+
+    /** Executor for periodic work of the connector. Created on first use. */
+    private ScheduledExecutorService scheduler;
+
+    public ManagedConnectionFactoryImpl() 
+    {
+    }
+
+    /**
+     * Freezes the current configuration. Executed only once, waiting for the PMF construction when already
+     * started in the background (see {@link #setAsyncBootstrap(Boolean)}).
+     * @throws NucleusException if the configuration was invalid or inconsistent in some way
+     */
+    protected void freezeConfiguration()
+    {
+        if (bootstrapped)
+        {
+            return;
+        }
+
+        FutureTask<Void> task = startBootstrap(false);
+        task.run(); // Runs it on this thread, unless already done or running in the background
+        try
+        {
+            task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new NucleusException("Interrupted while waiting for the PMF to be created", e);
+        }
+        catch (ExecutionException e)
+        {
+            synchronized (this)
+            {
+                if (bootstrap == task)
+                {
+                    // Allow the next request to retry
+                    bootstrap = null;
+                }
+            }
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new NucleusException("Exception creating the PMF", e.getCause());
+        }
+    }
+
+    /**
+     * Method to start construction of the PMF, if not already started.
+     * @param async Whether to run it on the connector executor, rather than leaving it to the caller
+     * @return The construction task
+     */
+    private synchronized FutureTask<Void> startBootstrap(boolean async)
+    {
+        if (bootstrap == null)
+        {
+            bootstrap = new FutureTask<>(this::bootstrapPersistenceManagerFactory, null);
+            if (async)
+            {
+                PersistenceManagerImpl.LOGGER.debug("Starting creation of PMF in the background");
+                getExecutor().execute(bootstrap);
+            }
+        }
+        return bootstrap;
+    }
+
+    /**
+     * Method to create the PMF(s) for the current configuration. When bootstrapping asynchronously the PMF
+     * is also initialised, and the persistence unit classes are then prepared in parallel in the background.
+     * On failure whatever was created is closed again, so that the next request can retry.
+     */
+    private void bootstrapPersistenceManagerFactory()
+    {
+        if (!configurable)
+        {
+        	return;
+        }
+
+        try
+        {
+            createPersistenceManagerFactories();
+        }
+        catch (RuntimeException | Error e)
+        {
+            closeFailedBootstrap();
+            throw e;
+        }
+    }
+
+    /**
+     * Method to close the PMFs and query cache created by a bootstrap that failed, and forget them.
+     */
+    private void closeFailedBootstrap()
+    {
+        if (queryCache != null)
+        {
+            queryCache.clear();
+            queryCache = null;
+        }
+        List<JDOPersistenceManagerFactory> createdPmfs = new ArrayList<>();
+        if (shardPmfs != null)
+        {
+            for (int i = 1; i < shardPmfs.length; i++)
+            {
+                createdPmfs.add(shardPmfs[i]);
+            }
+        }
+        createdPmfs.add(pmf);
+        for (JDOPersistenceManagerFactory createdPmf : createdPmfs)
+        {
+            try
+            {
+                if (createdPmf != null && !createdPmf.isClosed())
+                {
+                    createdPmf.close();
+                }
+            }
+            catch (RuntimeException e)
+            {
+                PersistenceManagerImpl.LOGGER.warn("Exception closing PMF after failed bootstrap", e);
+            }
+        }
+        pmf = null;
+        shardPmfs = null;
+        shardResolver = null;
+        nonMultitenantClasses = null;
+        skippedSchemaChecks = Collections.emptyMap();
+    }
+
+    /**
+     * Method to create and configure the PMF(s), query cache and listeners, see {@link #bootstrapPersistenceManagerFactory()}.
+     */
+    private void createPersistenceManagerFactories()
+    {
+        String[] shardNames = null;
+        if (shardConnectionFactoryNames != null)
+        {
+            if (tenantConnectionFactoryName != null)
+            {
+                throw new NucleusException("ShardConnectionFactoryNames cannot be used together with TenantConnectionFactoryName");
+            }
+            shardNames = StringUtils.split(shardConnectionFactoryNames, ",");
+            properties.put(Constants.PROPERTY_CONNECTION_FACTORY_NAME, shardNames[0].trim());
+        }
+
+        if (statementCacheSize > 0)
+        {
+            if (properties.getProperty(Constants.PROPERTY_CONNECTION_FACTORY_NAME) != null)
+            {
+                PersistenceManagerImpl.LOGGER.info("StatementCacheSize is ignored since connections come from the connection factory " +
+                    properties.getProperty(Constants.PROPERTY_CONNECTION_FACTORY_NAME) + ". Configure statement caching in its connection pool instead");
+            }
+            else
+            {
+                // Statements are pooled by each pooled connection, so survive the PM releasing the connection
+                properties.setProperty(RDBMSPropertyNames.PROPERTY_CONNECTION_POOL_MAX_STATEMENTS, String.valueOf(statementCacheSize));
+            }
+        }
+
+        if (isTransactionCostEnabled() || nPlusOneThreshold > 0)
+        {
+            // Transaction costs and N+1 patterns are computed from the statistics of each PM
+            properties.setProperty(PropertyNames.PROPERTY_ENABLE_STATISTICS, "true");
+        }
+
+        pmf = createPrimaryPersistenceManagerFactory();
+    	pmf.setTransactionType(TransactionType.JTA.toString()); // J2EE : default to JTA transactions
+        pmf.getNucleusContext().setJcaMode(true); // J2EE : set that using JCA connector
+
+        SchemaFingerprint schemaFingerprint = null;
+        if (schemaFingerprintFile != null)
+        {
+            schemaFingerprint = new SchemaFingerprint(schemaFingerprintFile, schemaVersion);
+            skippedSchemaChecks = schemaFingerprint.beforeFreeze(pmf);
+        }
+
+        // Configured listeners are only added once bootstrap succeeds, so that a retry doesn't add them again
+        List<TransactionCostListener> configuredListeners = new ArrayList<>();
+        if (transactionCostListeners != null)
+        {
+            ClassLoaderResolver clr = pmf.getNucleusContext().getClassLoaderResolver(null);
+            for (String listenerClass : StringUtils.split(transactionCostListeners, ","))
+            {
+                try
+                {
+                    Class<?> cls = clr.classForName(listenerClass.trim());
+                    configuredListeners.add((TransactionCostListener)cls.getDeclaredConstructor().newInstance());
+                }
+                catch (ReflectiveOperationException e)
+                {
+                    throw new NucleusException("Unable to instantiate TransactionCostListener " + listenerClass, e);
+                }
+            }
+        }
+
+        if (queryCacheSize > 0)
+        {
+            queryCache = new CompiledQueryCache(pmf, queryCacheSize);
+        }
+
+        if (shardNames != null)
+        {
+            ClassLoaderResolver clr = pmf.getNucleusContext().getClassLoaderResolver(null);
+            try
+            {
+                Class<?> cls = clr.classForName(shardResolverClass);
+                shardResolver = (ShardResolver)cls.getDeclaredConstructor().newInstance();
+            }
+            catch (ReflectiveOperationException e)
+            {
+                throw new NucleusException("Unable to instantiate ShardResolver " + shardResolverClass, e);
+            }
+
+            shardPmfs = new JDOPersistenceManagerFactory[shardNames.length];
+            shardPmfs[0] = pmf;
+            for (int i = 1; i < shardNames.length; i++)
+            {
+                shardPmfs[i] = createDerivedPersistenceManagerFactory("shard" + i, shardNames[i].trim());
+            }
+        }
+
+        if (asyncBootstrap || schemaFingerprint != null)
+        {
+            pmf.getDataStoreCache(); // Freezes the PMF, initialising the StoreManager
+        }
+        if (schemaFingerprint != null)
+        {
+            schemaFingerprint.afterFreeze(pmf);
+        }
+        if (precompileNamedQueries)
+        {
+            new NamedQueryPrecompiler(pmf).precompile(getExecutor());
+        }
+        if (tenantIdFromSubject && tenantConnectionFactoryName == null && !getNonMultitenantClasses().isEmpty())
+        {
+            throw new NucleusException("TenantIdFromSubject shares the PMF between tenants, but the persistence unit classes " +
+                getNonMultitenantClasses() + " have no multitenancy metadata, so their data would not be separated by tenant");
+        }
+        if (asyncBootstrap)
+        {
+            startClassWarmups();
+        }
+
+        costListeners.addAll(configuredListeners);
+        configurable = false;
+        bootstrapped = true;
+    }
+
+    /**
+     * Accessor for the state of the PMF, for monitoring.
+     * @return NOT_STARTED, STARTING, OPEN or CLOSED
+     */
+    String getPersistenceManagerFactoryState()
+    {
+        if (!bootstrapped)
+        {
+            synchronized (this)
+            {
+                return bootstrap == null ? "NOT_STARTED" : "STARTING";
+            }
+        }
+        return pmf.isClosed() ? "CLOSED" : "OPEN";
+    }
+
+    /**
+     * Accessor for the statistics of this connection factory.
+     * @return The statistics
+     */
+    public ConnectorStatistics getStatistics()
+    {
+        return statistics;
+    }
+
+    /**
+     * Method to create the primary PMF. When the persistence unit has a build-time index (see {@link PersistenceUnitIndex}),
+     * the persistence unit is taken from it so that no persistence.xml parsing or class scanning is needed.
+     * @return The PMF
+     */
+    private JDOPersistenceManagerFactory createPrimaryPersistenceManagerFactory()
+    {
+        String puName = properties.getProperty(Constants.PROPERTY_PERSISTENCE_UNIT_NAME);
+        if (puName != null && properties.getProperty(PropertyNames.PROPERTY_PERSISTENCE_XML_FILENAME) == null)
+        {
+            PersistenceUnitIndex index = PersistenceUnitIndex.load(getClass().getClassLoader(), puName);
+            if (index != null)
+            {
+                PersistenceManagerImpl.LOGGER.debug("Using build-time index of persistence unit " + puName + " with " + index.getClassNames().size() + " classes");
+                Map<String, Object> overrides = new HashMap<>();
+                properties.forEach((key, value) -> overrides.put((String)key, value));
+                overrides.remove(Constants.PROPERTY_PERSISTENCE_UNIT_NAME);
+                return new JDOPersistenceManagerFactory(index.getPersistenceUnitMetaData(), overrides);
+            }
+        }
+        return new JDOPersistenceManagerFactory(properties);
+    }
+
+    /**
+     * Method to prepare each class of the persistence unit in the background, spread over as many threads as
+     * there are processors. A request needing a class that is not yet ready prepares it itself, see {@link #awaitClass(String)}.
+     */
+    private void startClassWarmups()
+    {
+        PersistenceNucleusContext nucCtx = pmf.getNucleusContext();
+        Map<String, FutureTask<Void>> warmups = new ConcurrentHashMap<>();
+        for (String className : nucCtx.getMetaDataManager().getClassesWithMetaData())
+        {
+            warmups.put(className, new FutureTask<>(() -> warmClass(nucCtx, className), null));
+        }
+        if (warmups.isEmpty())
+        {
+            return;
+        }
+
+        Queue<FutureTask<Void>> queue = new ConcurrentLinkedQueue<>(warmups.values());
+        int numThreads = Math.min(Runtime.getRuntime().availableProcessors(), warmups.size());
+        AtomicInteger running = new AtomicInteger(numThreads);
+        long startTime = System.currentTimeMillis();
+        classWarmups = warmups;
+        for (int i = 0; i < numThreads; i++)
+        {
+            getExecutor().execute(() -> {
+                FutureTask<Void> task;
+                while ((task = queue.poll()) != null)
+                {
+                    task.run();
+                }
+                if (running.decrementAndGet() == 0)
+                {
+                    classWarmups = null;
+                    PersistenceManagerImpl.LOGGER.debug("Prepared " + warmups.size() + " classes in the background in " + (System.currentTimeMillis() - startTime) + " ms");
+                }
+            });
+        }
+    }
+
+    /**
+     * Method to load, initialise and manage a persistence unit class, so that the first request using it doesn't pay for it.
+     * Failures are only logged, the same work being done (and failing) again on first use of the class.
+     * @param nucCtx The NucleusContext
+     * @param className The class
+     */
+    private static void warmClass(PersistenceNucleusContext nucCtx, String className)
+    {
+        try
+        {
+            ClassLoaderResolver clr = nucCtx.getClassLoaderResolver(null);
+            nucCtx.getMetaDataManager().getMetaDataForClass(clr.classForName(className, true), clr);
+            nucCtx.getStoreManager().manageClasses(clr, className);
+        }
+        catch (RuntimeException | LinkageError e)
+        {
+            PersistenceManagerImpl.LOGGER.warn("Exception preparing class " + className + " in the background. It will be prepared on first use instead", e);
+        }
+    }
+
+    /**
+     * Method to wait until the specified class has been prepared, when classes are still being prepared in the background.
+     * @param className Name of the class
+     */
+    void awaitClass(String className)
+    {
+        Map<String, FutureTask<Void>> warmups = classWarmups;
+        if (warmups == null || className == null)
+        {
+            return;
+        }
+        FutureTask<Void> task = warmups.get(className);
+        if (task != null)
+        {
+            task.run(); // Runs it on this thread, unless already done or running in the background
+            try
+            {
+                task.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException e)
+            {
+                // Left for the operation using the class to report
+            }
+        }
+    }
+
+    // ----------------------- Setters/Getters for JCA -------------------------
+
+    /**
+     * Mutator for the name of the persistence unit.
+     * @param name Name of the persistence unit
+     */
+    public synchronized void setPersistenceUnitName(String name)
+    {
+        properties.put(Constants.PROPERTY_PERSISTENCE_UNIT_NAME, name);
+    }
+
+    /**
+     * Mutator for the filename of the persistence.xml file.
+     * This is for the case where an application has placed the persistence.xml somewhere else maybe
+     * outside the CLASSPATH.
+     * @param name Filename of the persistence unit
+     */
+    public synchronized void setPersistenceXmlFilename(String name)
+    {
+    	properties.put(PropertyNames.PROPERTY_PERSISTENCE_XML_FILENAME, name);
+    }
+
+    /**
+     * Mutator for the JNDI name of the secondary connection factory.
+     * Besides its normal DataNucleus usage, this is the datastore used by read-only connections
+     * (see {@link PersistenceManagerFactoryImpl#getReadOnlyPersistenceManager()}), so would typically
+     * point at a read replica.
+     * @param name JNDI name of the secondary connection factory
+     */
+    public synchronized void setConnectionFactory2Name(String name)
+    {
+        properties.put(Constants.PROPERTY_CONNECTION_FACTORY2_NAME, name);
+    }
+
+    /**
+     * Mutator for the JNDI name pattern of the connection factory for each tenant, for example "jdbc/tenant_{tenant}".
+     * When set, each tenant gets its own PMF (created on first use) using the connection factory for that tenant.
+     * When not set, all tenants share the primary PMF and are separated using the DataNucleus tenant id of each
+     * PersistenceManager, which needs multitenancy metadata on every persistent class of the persistence unit.
+     * @param name JNDI name pattern, with "{tenant}" where the tenant id is to be substituted
+     */
+    public synchronized void setTenantConnectionFactoryName(String name)
+    {
+        this.tenantConnectionFactoryName = name;
+    }
+
+    /**
+     * Mutator for the maximum number of tenant PMFs to keep open. When a new tenant PMF would exceed this,
+     * the least recently used tenant PMF without ManagedConnections is closed.
+     * @param max Maximum number of tenant PMFs
+     */
+    public synchronized void setMaxTenants(Integer max)
+    {
+        this.maxTenants = max;
+    }
+
+    /**
+     * Mutator for whether to take the tenant id from the user name of the Subject's PasswordCredential
+     * when the connection request doesn't specify a tenant.
+     * @param flag Whether to use the Subject for the tenant id
+     */
+    public synchronized void setTenantIdFromSubject(Boolean flag)
+    {
+        this.tenantIdFromSubject = flag;
+    }
+
+    /**
+     * Mutator for whether to create the PMF in the background as soon as the connection factory is created
+     * (typically at deploy time), rather than on the first request. The persistence unit classes are then also
+     * loaded, initialised and managed in parallel in the background, and requests only wait for the classes they use.
+     * Configuration errors are then reported to the first request rather than at deploy time.
+     * @param flag Whether to bootstrap asynchronously
+     */
+    public synchronized void setAsyncBootstrap(Boolean flag)
+    {
+        this.asyncBootstrap = flag;
+    }
+
+    /**
+     * Mutator for the file storing the schema fingerprint. When set, and schema auto-create or validation is enabled,
+     * the schema is only checked at startup when the mapped metadata, persistence properties, DataNucleus version or
+     * schema version differ from the last check recorded in this file. Delete the file to force a check.
+     * @param filename Name of the file
+     */
+    public synchronized void setSchemaFingerprintFile(String filename)
+    {
+        this.schemaFingerprintFile = filename;
+    }
+
+    /**
+     * Mutator for the version of the datastore schema, as maintained by the application (for example its migration version).
+     * Changing it invalidates the schema fingerprint.
+     * @param version The schema version
+     */
+    public synchronized void setSchemaVersion(String version)
+    {
+        this.schemaVersion = version;
+    }
+
+    /**
+     * Mutator for whether to record the execution latency and result size of the queries created through connection
+     * handles, in histograms per query shape exposed over JMX. Disabled by default, since each query and lazily loaded
+     * result is then wrapped in a proxy.
+     * @param flag Whether to record query statistics
+     */
+    public synchronized void setQueryStatistics(Boolean flag)
+    {
+        this.queryStatistics = flag;
+    }
+
+    /**
+     * Mutator for the interval at which the query histograms are logged (at INFO level, slowest queries first).
+     * @param seconds Interval in seconds, or 0 to not log them
+     */
+    public synchronized void setQueryStatisticsDumpInterval(Integer seconds)
+    {
+        this.queryStatisticsDumpInterval = seconds;
+    }
+
+    /**
+     * Mutator for the thresholds above which operations on connection handles are logged as slow, with their transaction
+     * context and (sampled) call stack. Specified as a comma-separated list of "operation=milliseconds", where the
+     * operation is one of flush, query, getObjectById, detachCopy and makePersistentAll, or "*" for all others.
+     * @param thresholds The thresholds, for example "flush=200,query=500,*=100"
+     * @throws NucleusException if the thresholds are invalid
+     */
+    public synchronized void setSlowOperationThresholds(String thresholds)
+    {
+        slowOperations.setThresholds(thresholds);
+    }
+
+    /**
+     * Mutator for how often the call stack of a slow operation is logged. Defaults to one in 10.
+     * @param sampling Log the call stack of one in this number of slow operations (0 for never)
+     */
+    public synchronized void setSlowOperationStackSampling(Integer sampling)
+    {
+        slowOperations.setStackSampling(sampling);
+    }
+
+    /**
+     * Mutator for the time that a connection handle can be held open before being reported as a possible leak.
+     * Handles that the container reclaims without them having been closed are reported too.
+     * @param seconds The threshold in seconds, or 0 (the default) to not detect leaks
+     */
+    public synchronized void setLeakDetectionThreshold(Integer seconds)
+    {
+        leakDetector.setThreshold(seconds);
+    }
+
+    /**
+     * Mutator for how often the call stack where a connection handle is obtained is captured, for reporting leaks.
+     * Defaults to one in 10.
+     * @param sampling Capture the call stack of one in this number of handles (0 for never)
+     */
+    public synchronized void setLeakDetectionStackSampling(Integer sampling)
+    {
+        leakDetector.setStackSampling(sampling);
+    }
+
+    /**
+     * Mutator for the {@link TransactionCostListener}s to notify of the cost of each transaction completed by the container.
+     * Reporting transaction costs enables the DataNucleus statistics of the PersistenceManagers.
+     * @param classNames Comma-separated names of the listener classes, each having a default constructor
+     */
+    public synchronized void setTransactionCostListeners(String classNames)
+    {
+        this.transactionCostListeners = classNames;
+    }
+
+    /**
+     * Mutator for whether to log (at INFO level, as key=value pairs) the cost of each transaction completed by the container.
+     * Reporting transaction costs enables the DataNucleus statistics of the PersistenceManagers.
+     * @param flag Whether to log transaction costs
+     */
+    public synchronized void setTransactionCostLogging(Boolean flag)
+    {
+        this.transactionCostLogging = flag;
+    }
+
+    /**
+     * Mutator for the number of single-object fetches of a class within a transaction (typically from navigating
+     * a relation of each object of a query result) at which the transaction is reported as having an N+1 pattern,
+     * with the relation navigated. Detection enables the DataNucleus statistics of the PersistenceManagers.
+     * @param threshold The threshold, or 0 (the default) to not detect N+1 patterns
+     */
+    public synchronized void setNPlusOneThreshold(Integer threshold)
+    {
+        this.nPlusOneThreshold = threshold;
+    }
+
+    /**
+     * Mutator for whether, when an N+1 pattern is detected, the relation navigated is added to the fetch plan for the rest
+     * of the transaction, so that it is fetched together with its owning objects by subsequent queries.
+     * @param flag Whether to add the relation to the fetch plan
+     */
+    public synchronized void setNPlusOneAutoFetch(Boolean flag)
+    {
+        this.nPlusOneAutoFetch = flag;
+    }
+
+    /**
+     * Mutator for the number of objects that getObjectsById, retrieveAll and refreshAll on connection handles load with
+     * a single query. The objects to load are grouped by class, and loaded in batches of this size with a query on their
+     * primary key, rather than with a SELECT each. Only applies to classes with a single primary key field, and not to
+     * getObjectsById without validation, which doesn't access the datastore.
+     * @param size Maximum number of objects per query, or 0 (the default) to load objects individually
+     */
+    public synchronized void setBatchLoadSize(Integer size)
+    {
+        this.batchLoadSize = size;
+    }
+
+    /**
+     * Mutator for the window over which getObjectById calls made concurrently on a connection handle outside of a transaction,
+     * such as by parallel sub-tasks of a request, are coalesced. The first call for a class waits for the window, and the
+     * objects requested for that class meanwhile are then loaded with a single query. The batch size is limited by
+     * BatchLoadSize (or 100 when not set). Only applies to classes with a single primary key field, and to PersistenceManagers
+     * that are Multithreaded (such as by the javax.jdo.option.Multithreaded property), since concurrent calls on a handle
+     * are otherwise not supported.
+     * @param micros The window in microseconds, or 0 (the default) to not coalesce calls
+     */
+    public synchronized void setGetObjectByIdCoalescingWindow(Integer micros)
+    {
+        this.coalescingWindow = micros;
+    }
+
+    /**
+     * Mutator for the number of objects managed by the PersistenceManager of a connection handle in a transaction at which
+     * the transaction is flushed and its clean objects evicted (becoming hollow, and so releasing their field values and no
+     * longer held by the transaction). Checked when objects are looked up, persisted or queried through the handle.
+     * This bounds the memory of long transactions that read many objects, without changing their outcome.
+     * @param threshold Number of managed objects, or 0 (the default) to not evict objects
+     */
+    public synchronized void setTransactionFootprintThreshold(Integer threshold)
+    {
+        this.footprintThreshold = threshold;
+    }
+
+    /**
+     * Mutator for the maximum number of asynchronous operations of connection handles running at a time, across all handles.
+     * The operations of each handle run one at a time, in order.
+     * @param threads Number of threads, or 0 (the default) for twice the number of processors
+     */
+    public synchronized void setAsyncThreads(Integer threads)
+    {
+        this.asyncThreads = threads;
+    }
+
+    /**
+     * Mutator for the maximum number of prepared statements cached by each datastore connection pooled by DataNucleus
+     * (when using ConnectionURL rather than a connection factory of the container). Statements are cached for the life of
+     * the pooled connection, so are not prepared again on each request when the PersistenceManager is closed, the least
+     * recently used ones being closed when the limit is reached. With a connection factory of the container, use the
+     * statement cache of its connection pool instead.
+     * @param size Maximum number of statements per connection, or 0 (the default) to not cache statements
+     */
+    public synchronized void setStatementCacheSize(Integer size)
     {
+        this.statementCacheSize = size;
     }
 
     /**
-     * Freezes the current configuration. Executed only once
-     * @throws NucleusException if the configuration was invalid or inconsistent in some way
+     * Mutator for whether to compile all named queries of the persistence unit, in parallel, when creating the PMF.
+     * This populates the query compilation caches before the first request, and logs a warning at deployment listing
+     * the named queries that don't compile, rather than leaving them to fail on first use. Such queries don't fail the
+     * deployment, since every request would otherwise retry (and fail) creating the PMF.
+     * @param flag Whether to precompile the named queries
      */
-    protected void freezeConfiguration()
+    public synchronized void setPrecompileNamedQueries(Boolean flag)
     {
-        if (!configurable)
-        {
-        	return;
-        }
+        this.precompileNamedQueries = flag;
+    }
 
-        pmf = new JDOPersistenceManagerFactory(properties);
-    	pmf.setTransactionType(TransactionType.JTA.toString()); // J2EE : default to JTA transactions
-        pmf.getNucleusContext().setJcaMode(true); // J2EE : set that using JCA connector
+    /**
+     * Mutator for the maximum number of compiled queries shared by all connection handles. Single-string and filter
+     * queries created through the handles are copied from a compiled template, and the compilations of the cached
+     * queries are kept in memory. Defaults to 1000.
+     * @param size Maximum number of queries, or 0 to not cache queries in the connector
+     */
+    public synchronized void setQueryCacheSize(Integer size)
+    {
+        this.queryCacheSize = size;
+    }
 
-        configurable = false;
+    /**
+     * Accessor for whether the cost of transactions is reported, to listeners or the log.
+     * @return Whether transaction costs are reported
+     */
+    boolean isTransactionCostEnabled()
+    {
+        return transactionCostLogging || transactionCostListeners != null;
     }
 
-    // ----------------------- Setters/Getters for JCA -------------------------
+    /**
+     * Method to add a listener to notify of the cost of each transaction. Only notified when transaction cost reporting
+     * is enabled by the TransactionCostListeners or TransactionCostLogging config property.
+     * @param listener The listener
+     */
+    void addTransactionCostListener(TransactionCostListener listener)
+    {
+        costListeners.add(listener);
+    }
+
+    void removeTransactionCostListener(TransactionCostListener listener)
+    {
+        costListeners.remove(listener);
+    }
 
     /**
-     * Mutator for the name of the persistence unit.
-     * @param name Name of the persistence unit
+     * Method to report the cost of a completed transaction to the listeners, and the log if enabled.
+     * @param cost The cost of the transaction
      */
-    public synchronized void setPersistenceUnitName(String name)
+    void transactionCompleted(TransactionCost cost)
     {
-        properties.put(Constants.PROPERTY_PERSISTENCE_UNIT_NAME, name);
+        if (transactionCostLogging)
+        {
+            PersistenceManagerImpl.LOGGER.info("Transaction cost : " + cost);
+        }
+        for (TransactionCostListener listener : costListeners)
+        {
+            try
+            {
+                listener.transactionCompleted(cost);
+            }
+            catch (RuntimeException e)
+            {
+                PersistenceManagerImpl.LOGGER.warn("TransactionCostListener " + listener + " threw exception", e);
+            }
+        }
     }
 
     /**
-     * Mutator for the filename of the persistence.xml file.
-     * This is for the case where an application has placed the persistence.xml somewhere else maybe
-     * outside the CLASSPATH.
-     * @param name Filename of the persistence unit
+     * Mutator for the JNDI names of the connection factories of the shards, comma-separated, with the first one
+     * being shard 0 (used in place of ConnectionFactoryName). When set, objects are routed to a shard by the
+     * {@link ShardResolver} from their identity, and each shard has its own PMF. Transactions are committed on one shard
+     * after the other, whether local or XA, so are not atomic across shards: a failure committing one shard leaves the
+     * shards before it committed and rolls back the others, which XA reports as a heuristic mixed outcome. Queries and extents are rejected on a sharded connection, other than through
+     * PersistenceManagerImpl.newQueryForShard and queryAllShards.
+     * @param names Comma-separated JNDI names of the shard connection factories
      */
-    public synchronized void setPersistenceXmlFilename(String name)
+    public synchronized void setShardConnectionFactoryNames(String names)
     {
-    	properties.put(PropertyNames.PROPERTY_PERSISTENCE_XML_FILENAME, name);
+        this.shardConnectionFactoryNames = names;
+    }
+
+    /**
+     * Mutator for the {@link ShardResolver} used to route objects to a shard. Defaults to {@link HashShardResolver}.
+     * @param className Name of the ShardResolver class
+     */
+    public synchronized void setShardResolverClass(String className)
+    {
+        this.shardResolverClass = className;
     }
 
     /**
@@ -119,8 +959,461 @@ public class ManagedConnectionFactoryImpl implements ManagedConnectionFactory
 
     public JDOPersistenceManagerFactory getPersistenceManagerFactory()
     {
+        freezeConfiguration();
 		return pmf;
 	}
+
+    /**
+     * Accessor for the PMF to use for the specified tenant.
+     * When no tenant connection factory is configured, or no tenant is specified, this is the primary PMF.
+     * Otherwise the tenant PMF is created on first use, sharing the persistence unit classes and class loading
+     * of the primary PMF. It is created by the first thread needing it, outside the lock on the tenants, while
+     * other threads needing the same tenant wait for it.
+     * @param tenantId The tenant id (or null)
+     * @return The PMF
+     */
+    public JDOPersistenceManagerFactory getPersistenceManagerFactory(String tenantId)
+    {
+        if (tenantId == null || tenantConnectionFactoryName == null)
+        {
+            return getPersistenceManagerFactory();
+        }
+
+        TenantPersistenceManagerFactory tenant;
+        CompletableFuture<JDOPersistenceManagerFactory> future;
+        boolean create;
+        List<JDOPersistenceManagerFactory> evicted = new ArrayList<>();
+        synchronized (tenantPmfs)
+        {
+            tenant = getTenant(tenantId, evicted);
+            future = tenant.pmf;
+            create = !tenant.creating;
+            tenant.creating = true;
+        }
+        closeTenantPersistenceManagerFactories(evicted);
+
+        if (create)
+        {
+            try
+            {
+                future.complete(createTenantPersistenceManagerFactory(tenantId));
+            }
+            catch (RuntimeException | Error e)
+            {
+                synchronized (tenantPmfs)
+                {
+                    // Let the next request retry
+                    tenant.pmf = new CompletableFuture<>();
+                    tenant.creating = false;
+                }
+                future.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        try
+        {
+            return future.join();
+        }
+        catch (CompletionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new NucleusException("Exception creating the PMF for tenant " + tenantId, e.getCause());
+        }
+    }
+
+    /**
+     * Accessor for the tenant PMF holder, adding it if not yet present. Must be called holding the lock on tenantPmfs.
+     * The tenant PMF itself is created by {@link #getPersistenceManagerFactory(String)}.
+     * @param tenantId The tenant id
+     * @param evicted List to add the PMFs of tenants evicted to make room to, to be closed without holding the lock
+     * @return The tenant PMF holder
+     */
+    private TenantPersistenceManagerFactory getTenant(String tenantId, List<JDOPersistenceManagerFactory> evicted)
+    {
+        TenantPersistenceManagerFactory tenant = tenantPmfs.get(tenantId);
+        if (tenant == null)
+        {
+            evictIdleTenants(maxTenants - 1, evicted);
+            tenant = new TenantPersistenceManagerFactory();
+            tenantPmfs.put(tenantId, tenant);
+        }
+        return tenant;
+    }
+
+    /**
+     * Method to close the PMFs of evicted tenants.
+     * @param evicted The PMFs
+     */
+    private static void closeTenantPersistenceManagerFactories(List<JDOPersistenceManagerFactory> evicted)
+    {
+        for (JDOPersistenceManagerFactory tenantPmf : evicted)
+        {
+            tenantPmf.close();
+        }
+    }
+
+    /**
+     * Method to create the PMF for a tenant. This uses the configuration of the primary PMF with the connection
+     * factory of the tenant, and the classes already known to the primary PMF so that no persistence unit
+     * parsing or class scanning is needed.
+     * @param tenantId The tenant id
+     * @return The tenant PMF
+     */
+    protected JDOPersistenceManagerFactory createTenantPersistenceManagerFactory(String tenantId)
+    {
+        PersistenceManagerImpl.LOGGER.debug("Creating PMF for tenant " + tenantId);
+        return createDerivedPersistenceManagerFactory(tenantId, tenantConnectionFactoryName.replace("{tenant}", tenantId));
+    }
+
+    /**
+     * Method to create a PMF with the configuration and persistence unit classes of the primary PMF,
+     * but a different connection factory.
+     * @param suffix Suffix for the persistence unit name of the new PMF
+     * @param connectionFactoryName JNDI name of the connection factory
+     * @return The PMF
+     */
+    private JDOPersistenceManagerFactory createDerivedPersistenceManagerFactory(String suffix, String connectionFactoryName)
+    {
+        PersistenceNucleusContext nucCtx = pmf.getNucleusContext();
+        Map<String, Object> derivedProps = new HashMap<>(nucCtx.getConfiguration().getPersistenceProperties());
+        derivedProps.remove(PropertyNames.PROPERTY_PERSISTENCE_UNIT_NAME);
+        derivedProps.remove(PropertyNames.PROPERTY_PMF_NAME);
+        derivedProps.put(PropertyNames.PROPERTY_CONNECTION_FACTORY_NAME, connectionFactoryName);
+        derivedProps.putAll(skippedSchemaChecks); // The schema fingerprint only covers the primary datastore
+
+        String puName = pmf.getPersistenceUnitName() != null ? pmf.getPersistenceUnitName() : "jca";
+        PersistenceUnitMetaData pumd = new PersistenceUnitMetaData(puName + "#" + suffix, TransactionType.JTA.toString(), null);
+        pumd.addClassNames(new HashSet<>(nucCtx.getMetaDataManager().getClassesWithMetaData()));
+        pumd.setExcludeUnlistedClasses(true);
+
+        JDOPersistenceManagerFactory derivedPmf = new JDOPersistenceManagerFactory(pumd, derivedProps);
+        derivedPmf.setTransactionType(TransactionType.JTA.toString());
+        derivedPmf.getNucleusContext().setJcaMode(true);
+        return derivedPmf;
+    }
+
+    /**
+     * Accessor for the number of shards.
+     * @return Number of shards, or 1 when not sharded
+     */
+    public int getNumberOfShards()
+    {
+        return shardPmfs != null ? shardPmfs.length : 1;
+    }
+
+    /**
+     * Accessor for the PMF of a shard.
+     * @param shard The shard number
+     * @return The PMF
+     */
+    public JDOPersistenceManagerFactory getShardPersistenceManagerFactory(int shard)
+    {
+        return shardPmfs != null ? shardPmfs[shard] : pmf;
+    }
+
+    /**
+     * Accessor for the shard holding the object with the specified identity.
+     * @param id The identity
+     * @return The shard number
+     */
+    public int getShardForIdentity(Object id)
+    {
+        if (shardPmfs == null)
+        {
+            return 0;
+        }
+        int shard = shardResolver.getShard(id, shardPmfs.length);
+        if (shard < 0 || shard >= shardPmfs.length)
+        {
+            throw new NucleusException("ShardResolver returned invalid shard " + shard + " for " + id);
+        }
+        return shard;
+    }
+
+    /**
+     * Accessor for the executor used for work that the connector does in parallel, such as queries over all shards.
+     * Uses daemon threads, which are discarded when idle.
+     * @return The executor
+     */
+    synchronized ExecutorService getExecutor()
+    {
+        if (executor == null)
+        {
+            AtomicInteger threadNumber = new AtomicInteger();
+            executor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "DataNucleus-JCA-" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Accessor for the executor used for periodic work of the connector, such as logging statistics.
+     * Uses a single daemon thread.
+     * @return The scheduler
+     */
+    synchronized ScheduledExecutorService getScheduler()
+    {
+        if (scheduler == null)
+        {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "DataNucleus-JCA-Scheduler");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * Accessor for the executor running the asynchronous operations of connection handles, see {@link AsyncPersistenceManager}.
+     * Runs at most AsyncThreads operations at a time, on virtual threads when the JRE supports them (otherwise daemon threads),
+     * queueing the others.
+     * @return The executor
+     */
+    synchronized ExecutorService getAsyncExecutor()
+    {
+        if (asyncExecutor == null)
+        {
+            int numThreads = asyncThreads > 0 ? asyncThreads : 2 * Runtime.getRuntime().availableProcessors();
+            ThreadFactory threadFactory;
+            try
+            {
+                // Thread.ofVirtual().factory(), from Java 21
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                threadFactory = (ThreadFactory)Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+            }
+            catch (ReflectiveOperationException e)
+            {
+                AtomicInteger threadNumber = new AtomicInteger();
+                threadFactory = r -> {
+                    Thread t = new Thread(r, "DataNucleus-JCA-Async-" + threadNumber.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                };
+            }
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, numThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+            pool.allowCoreThreadTimeOut(true);
+            asyncExecutor = pool;
+        }
+        return asyncExecutor;
+    }
+
+    /**
+     * Method to close the PMFs derived from the primary PMF, namely the read-only PMF, the PMFs of the other shards
+     * and the tenant PMFs, when the primary PMF is closed.
+     */
+    void closeDerivedPersistenceManagerFactories()
+    {
+        synchronized (this)
+        {
+            if (readOnlyPmf != null)
+            {
+                readOnlyPmf.close();
+                readOnlyPmf = null;
+            }
+        }
+        if (shardPmfs != null)
+        {
+            for (int i = 1; i < shardPmfs.length; i++)
+            {
+                shardPmfs[i].close();
+            }
+        }
+        List<JDOPersistenceManagerFactory> evicted = new ArrayList<>();
+        synchronized (tenantPmfs)
+        {
+            for (TenantPersistenceManagerFactory tenant : tenantPmfs.values())
+            {
+                if (tenant.pmf.getNow(null) != null)
+                {
+                    evicted.add(tenant.pmf.getNow(null));
+                }
+            }
+            tenantPmfs.clear();
+        }
+        closeTenantPersistenceManagerFactories(evicted);
+    }
+
+    /**
+     * Method to shut down the executors of the connector, when the PMF is closed. Work in progress on them is
+     * left to complete.
+     */
+    synchronized void shutdownExecutors()
+    {
+        for (ExecutorService service : new ExecutorService[] {executor, asyncExecutor, scheduler})
+        {
+            if (service != null)
+            {
+                service.shutdown();
+            }
+        }
+        executor = null;
+        asyncExecutor = null;
+        scheduler = null;
+    }
+
+    /**
+     * Method to evict least recently used tenants that have no ManagedConnections (and whose PMF is not being created),
+     * until at most the specified number of tenants remain. Must be called holding the lock on tenantPmfs.
+     * @param max Maximum number of tenants to leave
+     * @param evicted List to add the PMFs of the evicted tenants to, to be closed without holding the lock
+     */
+    private void evictIdleTenants(int max, List<JDOPersistenceManagerFactory> evicted)
+    {
+        Iterator<Map.Entry<String, TenantPersistenceManagerFactory>> iter = tenantPmfs.entrySet().iterator();
+        while (tenantPmfs.size() > max && iter.hasNext())
+        {
+            Map.Entry<String, TenantPersistenceManagerFactory> entry = iter.next();
+            TenantPersistenceManagerFactory tenant = entry.getValue();
+            if (tenant.connections == 0 && (!tenant.creating || tenant.pmf.isDone()))
+            {
+                PersistenceManagerImpl.LOGGER.debug("Closing PMF for idle tenant " + entry.getKey());
+                iter.remove();
+                if (tenant.pmf.getNow(null) != null)
+                {
+                    evicted.add(tenant.pmf.getNow(null));
+                }
+            }
+        }
+        if (tenantPmfs.size() > max)
+        {
+            PersistenceManagerImpl.LOGGER.warn("Number of tenant PMFs exceeds MaxTenants=" + maxTenants + " since all have active ManagedConnections");
+        }
+    }
+
+    /**
+     * Method to register the creation/destruction of a ManagedConnection for a tenant, so that
+     * tenant PMFs in use are never evicted. The tenant is added if not yet present.
+     * @param tenantId The tenant id
+     * @param delta +1 on creation, -1 on destruction
+     */
+    void tenantConnectionsChanged(String tenantId, int delta)
+    {
+        if (tenantId == null || tenantConnectionFactoryName == null)
+        {
+            return;
+        }
+        List<JDOPersistenceManagerFactory> evicted = new ArrayList<>();
+        synchronized (tenantPmfs)
+        {
+            getTenant(tenantId, evicted).connections += delta;
+        }
+        closeTenantPersistenceManagerFactories(evicted);
+    }
+
+    /**
+     * Accessor for the persistence unit classes that have no multitenancy metadata (in themselves or a superclass),
+     * so whose data would not be separated by tenant when tenants share the PMF.
+     * @return Names of the classes that are not multitenant
+     */
+    List<String> getNonMultitenantClasses()
+    {
+        if (nonMultitenantClasses == null)
+        {
+            synchronized (this)
+            {
+                if (nonMultitenantClasses == null)
+                {
+                    MetaDataManager mmgr = pmf.getNucleusContext().getMetaDataManager();
+                    ClassLoaderResolver clr = pmf.getNucleusContext().getClassLoaderResolver(null);
+                    List<String> classNames = new ArrayList<>();
+                    for (String className : mmgr.getClassesWithMetaData())
+                    {
+                        AbstractClassMetaData cmd = mmgr.getMetaDataForClass(className, clr);
+                        if (cmd == null || cmd.getPersistenceModifier() != ClassPersistenceModifier.PERSISTENCE_CAPABLE || cmd.isEmbeddedOnly())
+                        {
+                            continue;
+                        }
+                        AbstractClassMetaData tenantCmd = cmd;
+                        while (tenantCmd != null && tenantCmd.getMultitenancyMetaData() == null)
+                        {
+                            tenantCmd = tenantCmd.getSuperAbstractClassMetaData();
+                        }
+                        if (tenantCmd == null)
+                        {
+                            classNames.add(className);
+                        }
+                    }
+                    Collections.sort(classNames);
+                    nonMultitenantClasses = classNames;
+                }
+            }
+        }
+        return nonMultitenantClasses;
+    }
+
+    /**
+     * Accessor for the tenant id for a connection request. This is taken from the request info when specified,
+     * otherwise from the Subject's credential if so configured.
+     * @param subject The subject
+     * @param cri The request info
+     * @return The tenant id (or null)
+     * @throws ResourceException if an error occurs obtaining the credential
+     */
+    String getTenantId(Subject subject, ConnectionRequestInfo cri)
+    throws ResourceException
+    {
+        if (cri instanceof ConnectionRequestInfoImpl && ((ConnectionRequestInfoImpl)cri).getTenantId() != null)
+        {
+            return ((ConnectionRequestInfoImpl)cri).getTenantId();
+        }
+        if (tenantIdFromSubject && subject != null)
+        {
+            PasswordCredential pc = getPasswordCredential(subject);
+            return pc != null ? pc.getUserName() : null;
+        }
+        return null;
+    }
+
+    /**
+     * Accessor for the PMF used by read-only connections. This is created on first use, using the same
+     * configuration as the primary PMF except that the secondary connection factory is used for all
+     * datastore access, the PMF is read-only, reads are non-transactional and no schema generation or validation is performed.
+     * @return The read-only PMF
+     * @throws NucleusException if no secondary connection factory is configured
+     */
+    public synchronized JDOPersistenceManagerFactory getReadOnlyPersistenceManagerFactory()
+    {
+        if (readOnlyPmf == null)
+        {
+            String replicaName = pmf.getConnectionFactory2Name();
+            if (replicaName == null)
+            {
+                throw new NucleusException("Read-only connections require ConnectionFactory2Name to be specified");
+            }
+
+            Properties readOnlyProps = new Properties();
+            readOnlyProps.putAll(properties);
+            readOnlyProps.put(Constants.PROPERTY_CONNECTION_FACTORY_NAME, replicaName);
+            readOnlyProps.put(Constants.PROPERTY_CONNECTION_FACTORY2_NAME, replicaName);
+            readOnlyProps.put(Constants.PROPERTY_READONLY, "true");
+            readOnlyProps.put(Constants.PROPERTY_NONTRANSACTIONAL_READ, "true");
+
+            // The replica schema is managed through the primary datastore, so never generate nor validate it
+            readOnlyProps.keySet().removeIf(key -> ((String)key).toLowerCase().startsWith("datanucleus.schema."));
+            for (String propName : new String[] {PropertyNames.PROPERTY_SCHEMA_AUTOCREATE_ALL, PropertyNames.PROPERTY_SCHEMA_AUTOCREATE_DATABASE,
+                PropertyNames.PROPERTY_SCHEMA_AUTOCREATE_TABLES, PropertyNames.PROPERTY_SCHEMA_AUTOCREATE_COLUMNS,
+                PropertyNames.PROPERTY_SCHEMA_AUTOCREATE_CONSTRAINTS, PropertyNames.PROPERTY_SCHEMA_AUTODELETE_COLUMNS,
+                PropertyNames.PROPERTY_SCHEMA_VALIDATE_ALL, PropertyNames.PROPERTY_SCHEMA_VALIDATE_TABLES,
+                PropertyNames.PROPERTY_SCHEMA_VALIDATE_COLUMNS, PropertyNames.PROPERTY_SCHEMA_VALIDATE_CONSTRAINTS})
+            {
+                readOnlyProps.put(propName, "false");
+            }
+            readOnlyProps.put(PropertyNames.PROPERTY_SCHEMA_GENERATE_DATABASE_MODE, "none");
+            readOnlyProps.put(PropertyNames.PROPERTY_SCHEMA_GENERATE_SCRIPTS_MODE, "none");
+
+            readOnlyPmf = new JDOPersistenceManagerFactory(readOnlyProps);
+            readOnlyPmf.setTransactionType(TransactionType.RESOURCE_LOCAL.toString()); // Never enlisted in XA
+        }
+        return readOnlyPmf;
+    }
     
     /**
      * Equality operator.
@@ -166,14 +1459,23 @@ public class ManagedConnectionFactoryImpl implements ManagedConnectionFactory
     public Object createConnectionFactory(ConnectionManager cm) 
     throws ResourceException
     {
-        freezeConfiguration();
+        if (asyncBootstrap)
+        {
+            startBootstrap(true);
+        }
+        else
+        {
+            freezeConfiguration();
+        }
+        statistics.register(properties.getProperty(Constants.PROPERTY_PERSISTENCE_UNIT_NAME));
+        leakDetector.start(getScheduler());
         return new PersistenceManagerFactoryImpl(this, cm);
     }
 
     /**
      * Creator for a managed connection.
      * @param subject The subject (what ?)
-     * @param cri Connection request info.
+     * @param cri Connection request info. A read-only {@link ConnectionRequestInfoImpl} gives a read-only connection.
      * @return The managed connection.
      * @exception javax.resource.ResourceException Thrown if an error occurs
      */
@@ -182,7 +1484,19 @@ public class ManagedConnectionFactoryImpl implements ManagedConnectionFactory
     {
         freezeConfiguration();
         PasswordCredential pc = getPasswordCredential(subject);
-        ManagedConnectionImpl mc = new ManagedConnectionImpl(this,pc);
+        String tenantId = getTenantId(subject, cri);
+        if (tenantId != null && tenantConnectionFactoryName != null && ConnectionRequestInfoImpl.isReadOnly(cri))
+        {
+            throw new ResourceException("Read-only connections are not supported for tenants with their own connection factory");
+        }
+        if (tenantId != null && tenantConnectionFactoryName == null && !getNonMultitenantClasses().isEmpty())
+        {
+            throw new ResourceException("Tenant " + tenantId + " would share the PMF, but the persistence unit classes " +
+                getNonMultitenantClasses() + " have no multitenancy metadata, so their data would not be separated by tenant");
+        }
+        tenantConnectionsChanged(tenantId, 1);
+        ManagedConnectionImpl mc = new ManagedConnectionImpl(this, pc, ConnectionRequestInfoImpl.isReadOnly(cri), tenantId);
+        statistics.connectionCreated(mc);
         return mc;
     }
 
@@ -204,6 +1518,8 @@ public class ManagedConnectionFactoryImpl implements ManagedConnectionFactory
     throws ResourceException
     {
         PasswordCredential pc = getPasswordCredential(subject);
+        boolean readOnly = ConnectionRequestInfoImpl.isReadOnly(cri);
+        String tenantId = getTenantId(subject, cri);
         for (Iterator i = mcs.iterator(); i.hasNext();)
         {
             Object o = i.next();
@@ -217,6 +1533,10 @@ public class ManagedConnectionFactoryImpl implements ManagedConnectionFactory
             {
                 continue;
             }
+            if (mc.isReadOnly() != readOnly || !Objects.equals(mc.getTenantId(), tenantId))
+            {
+                continue;
+            }
             if (pc == null && mc.getPasswordCredential() == null)
             {
                 return mc;
@@ -284,4 +1604,19 @@ public class ManagedConnectionFactoryImpl implements ManagedConnectionFactory
         }
         throw new ResourceException("No credentials found for ManagedConnectionFactory: " + this);
     }
+
+    /**
+     * Holder for a tenant PMF, together with the number of ManagedConnections currently using it.
+     * Its fields are guarded by the lock on tenantPmfs.
+     */
+    static class TenantPersistenceManagerFactory
+    {
+        /** The PMF, completed once created. Replaced when creating it fails, so that the next request retries. */
+        CompletableFuture<JDOPersistenceManagerFactory> pmf = new CompletableFuture<>();
+
+        /** Whether a thread has started creating the PMF. */
+        boolean creating = false;
+
+        int connections = 0;
+    }
 }
\ No newline at end of file
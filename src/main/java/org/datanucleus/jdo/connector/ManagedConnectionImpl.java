@@ -19,9 +19,15 @@ package org.datanucleus.jdo.connector;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 import javax.resource.ResourceException;
 import javax.resource.spi.ConnectionEvent;
@@ -29,12 +35,21 @@ import javax.resource.spi.ConnectionEventListener;
 import javax.resource.spi.ConnectionRequestInfo;
 import javax.resource.spi.LocalTransaction;
 import javax.resource.spi.ManagedConnection;
-import javax.resource.spi.ManagedConnectionMetaData;
 import javax.resource.spi.security.PasswordCredential;
 import javax.security.auth.Subject;
+import javax.jdo.JDOHelper;
+import javax.jdo.JDOUserException;
 import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
 
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.PropertyNames;
 import org.datanucleus.api.jdo.JDOPersistenceManager;
+import org.datanucleus.api.jdo.JDOPersistenceManagerFactory;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.IdentityType;
+import org.datanucleus.transaction.Transaction;
 
 /**
  * Implementation of ManagedConnection persistence manager
@@ -70,8 +85,37 @@ public class ManagedConnectionImpl implements ManagedConnection
     private ContainerLocalTransaction localTx;
     
     private JDOPersistenceManager pm;
+
+    /** PMs for the shards of a sharded connection, created on first use. Shard 0 uses pm. */
+    private JDOPersistenceManager[] shardPms;
     
     private final ManagedConnectionFactoryImpl mcf;
+
+    /** Whether this is a read-only connection, using the read-only PMF and never taking part in XA transactions. */
+    private final boolean readOnly;
+
+    /** Tenant that this connection is for (or null). */
+    private final String tenantId;
+
+    private final LongAdder operationsServed = new LongAdder();
+
+    private final LongAdder transactionsCommitted = new LongAdder();
+
+    private final LongAdder transactionsRolledBack = new LongAdder();
+
+    /** Time (millisecs) of the last operation through a handle of this connection. */
+    private volatile long lastUsedTime = System.currentTimeMillis();
+
+    private final ManagedConnectionMetaDataImpl metaData = new ManagedConnectionMetaDataImpl(this);
+
+    /** Trackers of the cost of transactions on the PersistenceManagers of this connection, when reporting transaction costs. */
+    private final List<TransactionCostTracker> costTrackers = new ArrayList<>();
+
+    /** Recent events of this connection, for post-mortem diagnosis. */
+    private final TraceBuffer trace = new TraceBuffer();
+
+    /** Last asynchronous operation issued on the PersistenceManager of this connection, which the next one runs after. */
+    private CompletableFuture<?> lastAsyncOperation = CompletableFuture.completedFuture(null);
     
     /**
      * Constructor.
@@ -81,9 +125,38 @@ public class ManagedConnectionImpl implements ManagedConnection
      */
     public ManagedConnectionImpl(ManagedConnectionFactoryImpl mcf, PasswordCredential credential)
     throws ResourceException
+    {
+        this(mcf, credential, false);
+    }
+
+    /**
+     * Constructor.
+     * @param mcf the ManagedConnectionFactory
+     * @param credential the PasswordCredential
+     * @param readOnly Whether this is a read-only connection
+     * @throws ResourceException if error occurs
+     */
+    public ManagedConnectionImpl(ManagedConnectionFactoryImpl mcf, PasswordCredential credential, boolean readOnly)
+    throws ResourceException
+    {
+        this(mcf, credential, readOnly, null);
+    }
+
+    /**
+     * Constructor.
+     * @param mcf the ManagedConnectionFactory
+     * @param credential the PasswordCredential
+     * @param readOnly Whether this is a read-only connection
+     * @param tenantId the tenant that this connection is for (or null)
+     * @throws ResourceException if error occurs
+     */
+    public ManagedConnectionImpl(ManagedConnectionFactoryImpl mcf, PasswordCredential credential, boolean readOnly, String tenantId)
+    throws ResourceException
     {
         this.credential = credential;
         this.mcf = mcf;
+        this.readOnly = readOnly;
+        this.tenantId = tenantId;
     }
 
     PasswordCredential getPasswordCredential()
@@ -96,6 +169,24 @@ public class ManagedConnectionImpl implements ManagedConnection
         return mcf;
     }
 
+    /**
+     * Accessor for whether this is a read-only connection.
+     * @return Whether read-only
+     */
+    public boolean isReadOnly()
+    {
+        return readOnly;
+    }
+
+    /**
+     * Accessor for the tenant that this connection is for.
+     * @return The tenant id (or null)
+     */
+    public String getTenantId()
+    {
+        return tenantId;
+    }
+
     /**
      * Method to start the Transaction
      */
@@ -104,10 +195,12 @@ public class ManagedConnectionImpl implements ManagedConnection
         if (getPersistenceManager().getExecutionContext().getTransaction() == null)
         {
             PersistenceManagerImpl.LOGGER.error("Invalid state during begin invoke. Transaction is closed.");
+            trace(TraceBuffer.Event.FAILED, null, TraceBuffer.Event.BEGIN.ordinal());
+            logTrace("BEGIN failed");
             return;
         }
 
-        PersistenceManagerImpl.LOGGER.debug("Beginning ManagedConnection "+this);
+        trace(TraceBuffer.Event.BEGIN, null, 0);
         if (!getPersistenceManager().getExecutionContext().getTransaction().isActive())
         {
         	getPersistenceManager().getExecutionContext().getTransaction().begin();
@@ -125,7 +218,7 @@ public class ManagedConnectionImpl implements ManagedConnection
     public void destroy()
     throws ResourceException
     {
-        PersistenceManagerImpl.LOGGER.debug("Destroying ManagedConnection "+this);
+        trace(TraceBuffer.Event.DESTROY, null, 0);
         
         // if the user has not closed it, we close it
         if (!handles.isEmpty())
@@ -136,6 +229,7 @@ public class ManagedConnectionImpl implements ManagedConnection
                 PersistenceManagerImpl pm = ((PersistenceManagerImpl)it.next());
                 if (!pm.isClosed())
                 {
+                    mcf.leakDetector.handleReclaimed(pm, "destroyed");
                     pm.close();
                 }
             }
@@ -145,9 +239,13 @@ public class ManagedConnectionImpl implements ManagedConnection
         {
         	pm.close();
         }
+        closeShardPersistenceManagers();
         //xares = null;
         localTx = null;
         pm = null;
+
+        mcf.tenantConnectionsChanged(tenantId, -1);
+        mcf.getStatistics().connectionDestroyed(this);
     }
 
     /**
@@ -157,7 +255,7 @@ public class ManagedConnectionImpl implements ManagedConnection
     public synchronized void cleanup()
     throws ResourceException
     {
-        PersistenceManagerImpl.LOGGER.debug("Cleaning up ManagedConnection "+this);
+        trace(TraceBuffer.Event.CLEANUP, null, 0);
         if (pm != null)
         {
         	pm.getExecutionContext().closeCallbackHandler();
@@ -165,7 +263,12 @@ public class ManagedConnectionImpl implements ManagedConnection
 
         for (Iterator<PersistenceManagerImpl> i = handles.iterator(); i.hasNext();)
         {
-            i.next().setManagedConnection(null);
+            PersistenceManagerImpl handle = i.next();
+            if (!handle.isClosed())
+            {
+                mcf.leakDetector.handleReclaimed(handle, "cleaned up");
+            }
+            handle.setManagedConnection(null);
         }
         handles.clear();
         //closedHandles.clear();
@@ -177,9 +280,11 @@ public class ManagedConnectionImpl implements ManagedConnection
         {
             pm.close();
         }
+        closeShardPersistenceManagers();
 
         localTx = null;
         pm = null;
+        mcf.getStatistics().connectionCleanedUp();
         //after calling this, this MC goes to the connection pool in the application server...
         //TODO really clean out resources here
     }
@@ -188,17 +293,194 @@ public class ManagedConnectionImpl implements ManagedConnection
     {
     	if (pm == null)
     	{
-    		if (getPasswordCredential() == null)
+    		JDOPersistenceManagerFactory pmf = readOnly ? mcf.getReadOnlyPersistenceManagerFactory() : mcf.getPersistenceManagerFactory(tenantId);
+    		pm = openPersistenceManager(pmf);
+    		if (tenantId != null && (readOnly || pmf == mcf.getPersistenceManagerFactory()))
     		{
-    			pm = (JDOPersistenceManager) mcf.getPersistenceManagerFactory().getPersistenceManager();
-    		}
-    		else
-    		{
-    			pm = (JDOPersistenceManager) mcf.getPersistenceManagerFactory().getPersistenceManager(getPasswordCredential().getUserName(),new String(getPasswordCredential().getPassword()));
+    		    // Tenant sharing the PMF, so separate its data using the DataNucleus tenant id
+    		    pm.setProperty(PropertyNames.PROPERTY_MAPPING_TENANT_ID, tenantId);
     		}
     	}
 		return pm;
 	}
+
+    /**
+     * Method to open a PersistenceManager for this connection, using its credential if any.
+     * @param pmf The PMF
+     * @return The PersistenceManager
+     */
+    private JDOPersistenceManager openPersistenceManager(JDOPersistenceManagerFactory pmf)
+    {
+        JDOPersistenceManager newPm;
+        if (getPasswordCredential() == null)
+        {
+            newPm = (JDOPersistenceManager) pmf.getPersistenceManager();
+        }
+        else
+        {
+            newPm = (JDOPersistenceManager) pmf.getPersistenceManager(getPasswordCredential().getUserName(), new String(getPasswordCredential().getPassword()));
+        }
+        if (mcf.isTransactionCostEnabled())
+        {
+            costTrackers.add(TransactionCostTracker.track(newPm));
+        }
+        if (mcf.nPlusOneThreshold > 0)
+        {
+            NPlusOneDetector.detect(newPm, mcf.nPlusOneThreshold, mcf.nPlusOneAutoFetch);
+        }
+        return newPm;
+    }
+
+    /**
+     * Accessor for the number of handles currently associated with this connection.
+     * @return Number of handles
+     */
+    int getHandleCount()
+    {
+        return handles.size();
+    }
+
+    /**
+     * Accessor for the XA transaction branches currently started on this connection.
+     * @return The active Xids
+     */
+    List<Xid> getActiveXids()
+    {
+        return xares != null ? ((ConnectionXAResource)xares).getActiveXids() : Collections.emptyList();
+    }
+
+    /**
+     * Accessor for whether this connection routes objects over several shards.
+     * Read-only connections always use the replica of shard 0.
+     * @return Whether sharded
+     */
+    boolean isSharded()
+    {
+        return !readOnly && mcf.getNumberOfShards() > 1;
+    }
+
+    /**
+     * Accessor for the PersistenceManager of a shard, opening it if not yet open. A shard PM opened while
+     * the transaction of this connection is active joins that transaction.
+     * @param shard The shard number
+     * @return The PersistenceManager for the shard
+     */
+    JDOPersistenceManager getPersistenceManager(int shard)
+    {
+        if (shard == 0)
+        {
+            return getPersistenceManager();
+        }
+        if (shardPms == null)
+        {
+            shardPms = new JDOPersistenceManager[mcf.getNumberOfShards()];
+        }
+        if (shardPms[shard] == null)
+        {
+            JDOPersistenceManager shardPm = openPersistenceManager(mcf.getShardPersistenceManagerFactory(shard));
+            Transaction tx = getPersistenceManager().getExecutionContext().getTransaction();
+            if (tx != null && tx.isActive())
+            {
+                shardPm.getExecutionContext().getTransaction().begin();
+            }
+            shardPms[shard] = shardPm;
+        }
+        return shardPms[shard];
+    }
+
+    /**
+     * Accessor for the PersistenceManagers of the shards other than shard 0 that have been opened,
+     * so that transaction demarcation can be applied to them too.
+     * @return The open shard PersistenceManagers
+     */
+    List<JDOPersistenceManager> getShardPersistenceManagers()
+    {
+        List<JDOPersistenceManager> pms = new ArrayList<>();
+        if (shardPms != null)
+        {
+            for (int i = 1; i < shardPms.length; i++)
+            {
+                if (shardPms[i] != null)
+                {
+                    pms.add(shardPms[i]);
+                }
+            }
+        }
+        return pms;
+    }
+
+    /**
+     * Method to roll back the transactions of PersistenceManagers that were not committed when committing the shards
+     * failed part way, so that they are not reused by the next transaction of this connection.
+     * @param pms The PersistenceManagers not committed
+     */
+    void rollbackUncommitted(List<JDOPersistenceManager> pms)
+    {
+        for (JDOPersistenceManager shardPm : pms)
+        {
+            try
+            {
+                Transaction shardTx = shardPm.getExecutionContext().getTransaction();
+                if (shardTx != null && shardTx.isActive())
+                {
+                    shardTx.rollback();
+                }
+            }
+            catch (RuntimeException e)
+            {
+                PersistenceManagerImpl.LOGGER.warn("Exception rolling back uncommitted transaction of " + shardPm, e);
+            }
+        }
+    }
+
+    /**
+     * Accessor for the PersistenceManager of the shard holding the object with the specified identity.
+     * @param id The identity
+     * @return The PersistenceManager
+     */
+    JDOPersistenceManager getPersistenceManagerForIdentity(Object id)
+    {
+        return getPersistenceManager(mcf.getShardForIdentity(id));
+    }
+
+    /**
+     * Accessor for the PersistenceManager of the shard that an object belongs in. An object managed by one of
+     * the shard PMs stays with it, otherwise the shard is decided from its (detached or application) identity.
+     * @param pc The object
+     * @return The PersistenceManager
+     * @throws JDOUserException if the object is new and doesn't use application identity
+     */
+    JDOPersistenceManager getPersistenceManagerForObject(Object pc)
+    {
+        Object owner = JDOHelper.getPersistenceManager(pc);
+        if (owner == getPersistenceManager() || (shardPms != null && Arrays.asList(shardPms).contains(owner)))
+        {
+            return (JDOPersistenceManager)owner;
+        }
+
+        Object id = JDOHelper.getObjectId(pc);
+        if (id == null)
+        {
+            ExecutionContext ec = getPersistenceManager().getExecutionContext();
+            ClassLoaderResolver clr = ec.getClassLoaderResolver();
+            AbstractClassMetaData cmd = ec.getMetaDataManager().getMetaDataForClass(pc.getClass(), clr);
+            if (cmd == null || cmd.getIdentityType() != IdentityType.APPLICATION)
+            {
+                throw new JDOUserException("Unable to decide the shard for new object of type " + pc.getClass().getName() + " since it does not use application identity");
+            }
+            id = ec.getNucleusContext().getIdentityManager().getApplicationId(pc, cmd);
+        }
+        return getPersistenceManagerForIdentity(id);
+    }
+
+    private void closeShardPersistenceManagers()
+    {
+        for (JDOPersistenceManager shardPm : getShardPersistenceManagers())
+        {
+            shardPm.close();
+        }
+        shardPms = null;
+    }
     
     /**
      * Accessor for the connection
@@ -210,7 +492,8 @@ public class ManagedConnectionImpl implements ManagedConnection
     public Object getConnection(Subject subject, ConnectionRequestInfo cri)
     throws ResourceException
     {
-        PersistenceManagerImpl.LOGGER.debug("Obtaining Connection for this ManagedConnection "+this);
+        ConnectorEvents.ConnectionAllocationEvent event = new ConnectorEvents.ConnectionAllocationEvent();
+        event.begin();
         PasswordCredential pc = getManagedConnectionFactory().getPasswordCredential(subject);
         if (credential != pc && credential != null && pc != null && !credential.equals(pc))
         {
@@ -219,6 +502,14 @@ public class ManagedConnectionImpl implements ManagedConnection
 
         PersistenceManagerImpl pm = new PersistenceManagerImpl(this);
         handles.add(0, pm);
+        trace(TraceBuffer.Event.HANDLE_CREATED, pm, 0);
+        mcf.getStatistics().handleCreated();
+        if (event.shouldCommit())
+        {
+            event.managedConnection = ConnectorEvents.identity(this);
+            event.handle = ConnectorEvents.identity(pm);
+            event.commit();
+        }
         return pm;
     }
 
@@ -280,7 +571,7 @@ public class ManagedConnectionImpl implements ManagedConnection
         {
             throw new ResourceException("wrong Connection type!");
         }
-        PersistenceManagerImpl.LOGGER.debug("Associating "+c+" to this ManagedConnection "+this);
+        trace(TraceBuffer.Event.HANDLE_ASSOCIATED, c, 0);
         ((PersistenceManagerImpl)c).setManagedConnection(this);
         if (!handles.contains(c))
         {
@@ -296,7 +587,7 @@ public class ManagedConnectionImpl implements ManagedConnection
     public LocalTransaction getLocalTransaction()
     throws ResourceException
     {
-        PersistenceManagerImpl.LOGGER.debug("ManagedConnectionImpl.getLocalTransaction() invoked");
+        trace(TraceBuffer.Event.GET_LOCAL_TRANSACTION, null, 0);
         if (localTx==null)
         {
             localTx = new ContainerLocalTransaction(this);
@@ -309,23 +600,150 @@ public class ManagedConnectionImpl implements ManagedConnection
      * @return metadata for the connection
      * @exception javax.resource.ResourceException if error occurs
      */
-    public ManagedConnectionMetaData getMetaData()
-    throws ResourceException
+    public ManagedConnectionMetaDataImpl getMetaData()
+    {
+        return metaData;
+    }
+
+    /**
+     * Called by the handles for each operation invoked, to keep usage statistics.
+     */
+    void operationServed()
+    {
+        operationsServed.increment();
+        lastUsedTime = System.currentTimeMillis();
+        mcf.getStatistics().operationServed();
+    }
+
+    /**
+     * Method to issue an asynchronous operation on the PersistenceManager of this connection, to run once the previous one
+     * has completed (normally or not), whichever handle issued it, since the PersistenceManager is not thread-safe.
+     * @param operation The operation
+     * @param executor Executor to run the operation on
+     * @return The result of the operation
+     * @param <T> Type of the result
+     */
+    synchronized <T> CompletableFuture<T> runAsync(Supplier<T> operation, Executor executor)
+    {
+        CompletableFuture<T> result = lastAsyncOperation.handle((r, e) -> null).thenApplyAsync(x -> operation.get(), executor);
+        lastAsyncOperation = result;
+        return result;
+    }
+
+    /**
+     * Called on completion of a transaction of this connection, to keep usage statistics and report the transaction cost.
+     * @param committed Whether the transaction committed (otherwise rolled back)
+     * @param xid The XA transaction branch, or null for a local transaction
+     */
+    void transactionCompleted(boolean committed, Xid xid)
+    {
+        (committed ? transactionsCommitted : transactionsRolledBack).increment();
+        mcf.getStatistics().transactionCompleted(committed);
+        if (!costTrackers.isEmpty())
+        {
+            reportTransactionCost(committed, xid);
+        }
+    }
+
+    /**
+     * Method to compute the cost of the completed transaction over the PersistenceManagers of this connection,
+     * and report it to the ManagedConnectionFactory.
+     * @param committed Whether the transaction committed
+     * @param xid The XA transaction branch, or null for a local transaction
+     */
+    private void reportTransactionCost(boolean committed, Xid xid)
+    {
+        int[] totals = new int[7];
+        long startNanos = System.nanoTime();
+        for (Iterator<TransactionCostTracker> iter = costTrackers.iterator(); iter.hasNext();)
+        {
+            TransactionCostTracker tracker = iter.next();
+            if (tracker.getPersistenceManager().isClosed())
+            {
+                iter.remove();
+                continue;
+            }
+            tracker.addTo(totals);
+            if (tracker.getPersistenceManager() == pm)
+            {
+                startNanos = tracker.getStartNanos();
+            }
+            tracker.transactionStarted();
+        }
+        mcf.transactionCompleted(new TransactionCost(xid, committed, System.nanoTime() - startNanos,
+            totals[0], totals[1], totals[2], totals[3], totals[4], totals[5], totals[6]));
+    }
+
+    long getOperationsServed()
+    {
+        return operationsServed.sum();
+    }
+
+    long getTransactionsCommitted()
+    {
+        return transactionsCommitted.sum();
+    }
+
+    long getTransactionsRolledBack()
+    {
+        return transactionsRolledBack.sum();
+    }
+
+    long getLastUsedTime()
+    {
+        return lastUsedTime;
+    }
+
+    /**
+     * Accessor for the PersistenceManager of this connection, without opening one.
+     * @return The PersistenceManager, or null if none is open
+     */
+    JDOPersistenceManager getCurrentPersistenceManager()
+    {
+        return pm;
+    }
+
+    /**
+     * Method to add a record to the trace of this connection.
+     * @param event Type of record
+     * @param subject Object the record is about (may be null)
+     * @param detail Detail value of the record
+     */
+    void trace(TraceBuffer.Event event, Object subject, long detail)
+    {
+        trace.record(event, subject, detail);
+    }
+
+    /**
+     * Accessor for the recent trace records of this connection, oldest first.
+     * @return The trace records
+     */
+    List<String> getTrace()
+    {
+        return trace.dump();
+    }
+
+    /**
+     * Method to log the recent trace records of this connection, typically after an error.
+     * @param reason Why the trace is logged
+     */
+    void logTrace(String reason)
     {
-        throw new ResourceException("Not Yet Implemented");
+        trace.log("Trace of ManagedConnection " + this + " (" + reason + ")");
     }
 
     /**
      * Accessor for the XA resource. The application server enlists
      * this XAResource into a XA transaction
-     * This is invoked only once per instance.
+     * This is invoked only once per instance. For a read-only connection the XAResource does no work
+     * and votes read-only at prepare.
      * @return XA resource
      * @exception javax.resource.ResourceException if error occurs
      */
     public XAResource getXAResource()
     throws ResourceException
     {
-        PersistenceManagerImpl.LOGGER.debug("ManagedConnectionImpl.getXAResource() invoked");
+        trace(TraceBuffer.Event.GET_XA_RESOURCE, null, 0);
         if (xares == null)
         {
             xares = new ConnectionXAResource(this);
@@ -0,0 +1,164 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import javax.jdo.Constants;
+import javax.resource.cci.ConnectionMetaData;
+import javax.resource.spi.ManagedConnectionMetaData;
+
+import org.datanucleus.api.jdo.JDOPersistenceManager;
+import org.datanucleus.store.StoreManager;
+import org.datanucleus.store.rdbms.RDBMSStoreManager;
+
+/**
+ * MetaData for a ManagedConnection, serving both the container (ManagedConnectionMetaData) and the
+ * application (ConnectionMetaData of a handle). Besides the datastore details it gives a live view of the
+ * usage of the connection, for pool sizing and eviction decisions.
+ */
+public class ManagedConnectionMetaDataImpl implements ManagedConnectionMetaData, ConnectionMetaData
+{
+    private final ManagedConnectionImpl mc;
+
+    ManagedConnectionMetaDataImpl(ManagedConnectionImpl mc)
+    {
+        this.mc = mc;
+    }
+
+    public String getEISProductName()
+    {
+        return getDatastoreProductName(getStoreManager());
+    }
+
+    public String getEISProductVersion()
+    {
+        return getDatastoreProductVersion(getStoreManager());
+    }
+
+    /**
+     * Accessor for the maximum number of connections. The adapter itself has no limit, the pool being managed by the container.
+     * @return 0 meaning no limit
+     */
+    public int getMaxConnections()
+    {
+        return 0;
+    }
+
+    public String getUserName()
+    {
+        if (mc.getPasswordCredential() != null)
+        {
+            return mc.getPasswordCredential().getUserName();
+        }
+        return (String)getStoreManager().getNucleusContext().getConfiguration().getProperty(Constants.PROPERTY_CONNECTION_USER_NAME);
+    }
+
+    /**
+     * Accessor for the number of handles currently associated with the connection.
+     * @return Number of handles
+     */
+    public int getHandleCount()
+    {
+        return mc.getHandleCount();
+    }
+
+    /**
+     * Accessor for the number of operations invoked through the handles of the connection.
+     * @return Number of operations
+     */
+    public long getOperationsServed()
+    {
+        return mc.getOperationsServed();
+    }
+
+    /**
+     * Accessor for the number of objects in the Level 1 cache of the connection.
+     * @return Number of objects, or 0 if the connection has no PersistenceManager currently
+     */
+    public int getLevel1CacheSize()
+    {
+        JDOPersistenceManager pm = mc.getCurrentPersistenceManager();
+        return pm != null && !pm.isClosed() ? pm.getExecutionContext().getLevel1Cache().size() : 0;
+    }
+
+    /**
+     * Accessor for the time since the connection was last used through a handle (or since it was created, if not yet used).
+     * @return Time in milliseconds
+     */
+    public long getMillisSinceLastUse()
+    {
+        return System.currentTimeMillis() - mc.getLastUsedTime();
+    }
+
+    /**
+     * Accessor for the number of transactions committed on the connection.
+     * @return Number of commits
+     */
+    public long getTransactionsCommitted()
+    {
+        return mc.getTransactionsCommitted();
+    }
+
+    /**
+     * Accessor for the number of transactions rolled back on the connection.
+     * @return Number of rollbacks
+     */
+    public long getTransactionsRolledBack()
+    {
+        return mc.getTransactionsRolledBack();
+    }
+
+    private StoreManager getStoreManager()
+    {
+        return mc.getManagedConnectionFactory().getPersistenceManagerFactory().getNucleusContext().getStoreManager();
+    }
+
+    /**
+     * Accessor for the product name of a datastore.
+     * @param storeMgr StoreManager for the datastore
+     * @return The product name, or the store type when not known
+     */
+    static String getDatastoreProductName(StoreManager storeMgr)
+    {
+        if (storeMgr instanceof RDBMSStoreManager)
+        {
+            return ((RDBMSStoreManager)storeMgr).getDatastoreAdapter().getDatastoreProductName();
+        }
+        return storeMgr.getStoreManagerKey();
+    }
+
+    /**
+     * Accessor for the product version of a datastore.
+     * @param storeMgr StoreManager for the datastore
+     * @return The product version, or null when not known
+     */
+    static String getDatastoreProductVersion(StoreManager storeMgr)
+    {
+        if (storeMgr instanceof RDBMSStoreManager)
+        {
+            return ((RDBMSStoreManager)storeMgr).getDatastoreAdapter().getDatastoreProductVersion();
+        }
+        return null;
+    }
+
+    public String toString()
+    {
+        return "ManagedConnectionMetaData[handles=" + getHandleCount() + ", operations=" + getOperationsServed() +
+            ", l1CacheSize=" + getLevel1CacheSize() + ", idleMillis=" + getMillisSinceLastUse() +
+            ", committed=" + getTransactionsCommitted() + ", rolledBack=" + getTransactionsRolledBack() + "]";
+    }
+}
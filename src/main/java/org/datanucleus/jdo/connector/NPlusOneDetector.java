@@ -0,0 +1,223 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import javax.jdo.FetchGroup;
+import javax.jdo.listener.InstanceLifecycleEvent;
+import javax.jdo.listener.LoadLifecycleListener;
+
+import org.datanucleus.api.jdo.JDOPersistenceManager;
+import org.datanucleus.management.ManagerStatistics;
+import org.datanucleus.transaction.TransactionEventListener;
+
+/**
+ * Detector of the "N+1" pattern on a PersistenceManager, where navigating a relation of each of a set of objects
+ * fetches the related objects one statement at a time. An object load is taken to be a single-object fetch when a
+ * statement was executed since the previous load (objects loaded by a query only count once). When the single-object
+ * fetches of a class within a transaction reach the threshold, the relation field being navigated is found from the
+ * call stack (the enhanced "dnGet" accessor), and optionally added to the fetch plan for the rest of the transaction
+ * so that it is fetched with its owner. Classes over the threshold are reported when the transaction completes.
+ */
+class NPlusOneDetector implements LoadLifecycleListener, TransactionEventListener
+{
+    /** Name of the fetch group holding the fields added to the fetch plan. */
+    static final String FETCH_GROUP_NAME = "datanucleus.jca.nplusone";
+
+    private static final String ACCESSOR_PREFIX = "dnGet";
+
+    private static final StackWalker STACK_WALKER = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+
+    private final JDOPersistenceManager pm;
+
+    private final int threshold;
+
+    private final boolean autoFetch;
+
+    /** Single-object fetches of each class in the current transaction. */
+    private final Map<String, Fetches> fetches = new HashMap<>();
+
+    private int lastReads = -1;
+
+    private boolean fetchPlanChanged = false;
+
+    /** Single-object fetches of a class, and the relation being navigated when detected. */
+    private static class Fetches
+    {
+        int count;
+        String relation;
+        boolean fetched;
+    }
+
+    private NPlusOneDetector(JDOPersistenceManager pm, int threshold, boolean autoFetch)
+    {
+        this.pm = pm;
+        this.threshold = threshold;
+        this.autoFetch = autoFetch;
+    }
+
+    /**
+     * Method to start detecting the N+1 pattern on a PersistenceManager. Its PMF must have statistics enabled.
+     * @param pm The PersistenceManager
+     * @param threshold Number of single-object fetches of a class in a transaction to report
+     * @param autoFetch Whether to add the navigated relation to the fetch plan when detected
+     */
+    static void detect(JDOPersistenceManager pm, int threshold, boolean autoFetch)
+    {
+        NPlusOneDetector detector = new NPlusOneDetector(pm, threshold, autoFetch);
+        pm.addInstanceLifecycleListener(detector, (Class[])null);
+        pm.getExecutionContext().getTransaction().bindTransactionEventListener(detector);
+    }
+
+    public void postLoad(InstanceLifecycleEvent event)
+    {
+        ManagerStatistics stats = pm.getExecutionContext().getStatistics();
+        if (stats == null || !pm.currentTransaction().isActive())
+        {
+            return;
+        }
+        int reads = stats.getNumberOfDatastoreReads();
+        if (reads == lastReads)
+        {
+            // Loaded by the same statement as the previous object, so not a single-object fetch
+            return;
+        }
+        lastReads = reads;
+
+        String className = event.getSource().getClass().getName();
+        Fetches classFetches = fetches.computeIfAbsent(className, k -> new Fetches());
+        if (++classFetches.count == threshold)
+        {
+            findRelation(event.getSource().getClass(), classFetches);
+        }
+    }
+
+    /**
+     * Method to find the field being navigated from the call stack, being the most recent enhanced field accessor
+     * called, and add it to the fetch plan if required.
+     * @param loadedClass Class of the object being loaded
+     * @param classFetches The fetches of the class, to set the relation of
+     */
+    private void findRelation(Class<?> loadedClass, Fetches classFetches)
+    {
+        Optional<StackWalker.StackFrame> accessor = STACK_WALKER.walk(frames -> frames
+            .filter(f -> f.getMethodName().startsWith(ACCESSOR_PREFIX) && f.getMethodName().length() > ACCESSOR_PREFIX.length())
+            .findFirst());
+        if (!accessor.isPresent())
+        {
+            return;
+        }
+        Class<?> ownerClass = accessor.get().getDeclaringClass();
+        String fieldName = accessor.get().getMethodName().substring(ACCESSOR_PREFIX.length());
+        if (autoFetch && ownerClass != loadedClass)
+        {
+            try
+            {
+                FetchGroup group = pm.getFetchGroup(ownerClass, FETCH_GROUP_NAME);
+                group.addMember(fieldName);
+                pm.getFetchPlan().addGroup(FETCH_GROUP_NAME);
+                fetchPlanChanged = true;
+                classFetches.fetched = true;
+            }
+            catch (RuntimeException e)
+            {
+                PersistenceManagerImpl.LOGGER.debug("Unable to add " + ownerClass.getName() + "." + fieldName + " to the fetch plan : " + e);
+            }
+        }
+        classFetches.relation = ownerClass.getName() + "." + fieldName;
+    }
+
+    /**
+     * Method to report the classes over the threshold in the completed transaction, and reset for the next transaction.
+     */
+    private void transactionCompleted()
+    {
+        for (Map.Entry<String, Fetches> entry : fetches.entrySet())
+        {
+            Fetches classFetches = entry.getValue();
+            if (classFetches.count >= threshold)
+            {
+                PersistenceManagerImpl.LOGGER.warn("N+1 pattern : " + classFetches.count + " single-object fetches of " + entry.getKey() +
+                    " in one transaction" + (classFetches.relation != null ? ", navigating " + classFetches.relation +
+                    (classFetches.fetched ? " (added to the fetch plan for the rest of the transaction)" : "") : ""));
+            }
+        }
+        reset();
+    }
+
+    private void reset()
+    {
+        fetches.clear();
+        lastReads = -1;
+        if (fetchPlanChanged)
+        {
+            pm.getFetchPlan().removeGroup(FETCH_GROUP_NAME);
+            fetchPlanChanged = false;
+        }
+    }
+
+    public void transactionStarted()
+    {
+        reset();
+    }
+
+    public void transactionCommitted()
+    {
+        transactionCompleted();
+    }
+
+    public void transactionRolledBack()
+    {
+        transactionCompleted();
+    }
+
+    public void transactionEnded()
+    {
+    }
+
+    public void transactionPreFlush()
+    {
+    }
+
+    public void transactionFlushed()
+    {
+    }
+
+    public void transactionPreCommit()
+    {
+    }
+
+    public void transactionPreRollBack()
+    {
+    }
+
+    public void transactionSetSavepoint(String name)
+    {
+    }
+
+    public void transactionReleaseSavepoint(String name)
+    {
+    }
+
+    public void transactionRollbackToSavepoint(String name)
+    {
+    }
+}
@@ -0,0 +1,197 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.api.jdo.JDOPersistenceManagerFactory;
+import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.FileMetaData;
+import org.datanucleus.metadata.MetaDataManager;
+import org.datanucleus.metadata.QueryMetaData;
+
+/**
+ * Compiles all named queries of the persistence unit of a PMF, in parallel, so that the query compilation caches of the
+ * PMF are populated before the first request and invalid queries are logged at deployment rather than found on first use.
+ * Named queries are those defined in the metadata of the persistence unit classes, and in the query files.
+ */
+class NamedQueryPrecompiler
+{
+    private final JDOPersistenceManagerFactory pmf;
+
+    /** Queries to compile. */
+    private final Queue<NamedQuery> queries = new ConcurrentLinkedQueue<>();
+
+    /** Description of each query failing to compile. */
+    private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructor.
+     * @param pmf The PMF
+     */
+    NamedQueryPrecompiler(JDOPersistenceManagerFactory pmf)
+    {
+        this.pmf = pmf;
+    }
+
+    /**
+     * Method to compile all named queries, spread over as many threads of the executor as there are processors,
+     * and wait for them. Queries failing to compile are logged, and don't fail the PMF.
+     * @param executor The executor
+     */
+    void precompile(ExecutorService executor)
+    {
+        findNamedQueries();
+        int numQueries = queries.size();
+        if (numQueries == 0)
+        {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        int numThreads = Math.min(Runtime.getRuntime().availableProcessors(), numQueries);
+        CountDownLatch done = new CountDownLatch(numThreads);
+        for (int i = 0; i < numThreads; i++)
+        {
+            executor.execute(() -> {
+                try
+                {
+                    compileQueries();
+                }
+                finally
+                {
+                    done.countDown();
+                }
+            });
+        }
+        try
+        {
+            done.await();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new NucleusException("Interrupted while compiling the named queries", e);
+        }
+
+        if (!failures.isEmpty())
+        {
+            PersistenceManagerImpl.LOGGER.warn(failures.size() + " of " + numQueries + " named queries failed to compile : " + String.join(", ", failures));
+            return;
+        }
+        PersistenceManagerImpl.LOGGER.info("Compiled " + numQueries + " named queries in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * Method to find the named queries in the metadata of the persistence unit.
+     */
+    private void findNamedQueries()
+    {
+        MetaDataManager mmgr = pmf.getNucleusContext().getMetaDataManager();
+        ClassLoaderResolver clr = pmf.getNucleusContext().getClassLoaderResolver(null);
+        for (String className : mmgr.getClassesWithMetaData())
+        {
+            AbstractClassMetaData cmd = mmgr.getMetaDataForClass(className, clr);
+            QueryMetaData[] qmds = cmd != null ? cmd.getQueries() : null;
+            if (qmds != null)
+            {
+                for (QueryMetaData qmd : qmds)
+                {
+                    queries.add(new NamedQuery(className, qmd.getName()));
+                }
+            }
+        }
+
+        FileMetaData[] fmds = mmgr.getFileMetaData();
+        if (fmds != null)
+        {
+            for (FileMetaData fmd : fmds)
+            {
+                QueryMetaData[] qmds = fmd.getQueries();
+                if (qmds != null)
+                {
+                    for (QueryMetaData qmd : qmds)
+                    {
+                        queries.add(new NamedQuery(qmd.getScope(), qmd.getName()));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to compile queries until none are left, using a PersistenceManager of its own.
+     */
+    private void compileQueries()
+    {
+        PersistenceManager pm = pmf.getPersistenceManager();
+        try
+        {
+            ClassLoaderResolver clr = pmf.getNucleusContext().getClassLoaderResolver(null);
+            NamedQuery namedQuery;
+            while ((namedQuery = queries.poll()) != null)
+            {
+                try
+                {
+                    Class<?> cls = namedQuery.className != null ? clr.classForName(namedQuery.className) : null;
+                    Query<?> query = pm.newNamedQuery(cls, namedQuery.name);
+                    query.compile();
+                    query.closeAll();
+                }
+                catch (RuntimeException e)
+                {
+                    PersistenceManagerImpl.LOGGER.warn("Named query " + namedQuery + " failed to compile", e);
+                    failures.add(namedQuery + " (" + e.getMessage() + ")");
+                }
+            }
+        }
+        finally
+        {
+            pm.close();
+        }
+    }
+
+    /**
+     * Named query, with the class it is scoped to (if any).
+     */
+    private static class NamedQuery
+    {
+        final String className;
+
+        final String name;
+
+        NamedQuery(String className, String name)
+        {
+            this.className = className;
+            this.name = name;
+        }
+
+        public String toString()
+        {
+            return className != null ? className + "." + name : name;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.jdo.JDOException;
+import javax.jdo.Query;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.ExecutionContext;
+import org.datanucleus.api.jdo.JDOPersistenceManager;
+import org.datanucleus.identity.IdentityUtils;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.IdentityType;
+
+/**
+ * Coalesces the getObjectById calls made concurrently on a connection handle outside of a transaction, for example by
+ * parallel sub-tasks of a request. The first caller for a class waits for the coalescing window, during which callers for
+ * the same class join its batch, and then loads the whole batch with a single query on the primary key, handing each
+ * caller its object. Only objects of classes with single-field application identity that are not already cached are
+ * coalesced. Callers whose object is not found by the batch query are left to look it up themselves, so that they get
+ * the usual exception. Only used for Multithreaded PersistenceManagers, since callers use the ExecutionContext concurrently.
+ */
+class ObjectByIdCoalescer
+{
+    private final long windowNanos;
+
+    private final int maxBatchSize;
+
+    /** Batch being collected, per class name. */
+    private final Map<String, Batch> pending = new HashMap<>();
+
+    /**
+     * Constructor.
+     * @param windowMicros Time (microseconds) the first caller waits for other callers to join its batch
+     * @param maxBatchSize Maximum number of objects per batch
+     */
+    ObjectByIdCoalescer(long windowMicros, int maxBatchSize)
+    {
+        this.windowNanos = windowMicros * 1000;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Method to get the object with the provided identity as part of a batch.
+     * @param pm The PersistenceManager of the handle
+     * @param id The identity
+     * @return The object, or null if it wasn't loaded by a batch and is to be looked up as usual
+     */
+    Object getObjectById(JDOPersistenceManager pm, Object id)
+    {
+        if (!IdentityUtils.isSingleFieldIdentity(id))
+        {
+            return null;
+        }
+        ExecutionContext ec = pm.getExecutionContext();
+        if (ec.getObjectFromCache(id) != null)
+        {
+            return null;
+        }
+        String className = IdentityUtils.getTargetClassNameForIdentity(id);
+        AbstractClassMetaData cmd = ec.getMetaDataManager().getMetaDataForClass(className, ec.getClassLoaderResolver());
+        if (cmd == null || cmd.getIdentityType() != IdentityType.APPLICATION || cmd.getNoOfPrimaryKeyMembers() != 1)
+        {
+            return null;
+        }
+
+        return getObject(className, IdentityUtils.getTargetKeyForSingleFieldIdentity(id), keys -> load(pm, cmd, keys));
+    }
+
+    /**
+     * Method to get the object with the provided key as part of the batch of its class. The caller starting the batch
+     * waits for the coalescing window and then loads the batch, while the other callers wait for their object.
+     * @param className Name of the class of the object
+     * @param key The key of the object
+     * @param loader Function loading the objects with the provided keys, mapped by key
+     * @return The object, or null if it wasn't loaded by the batch
+     */
+    Object getObject(String className, Object key, Function<Set<Object>, Map<Object, Object>> loader)
+    {
+        Batch batch;
+        CompletableFuture<Object> result;
+        boolean leader = false;
+        synchronized (pending)
+        {
+            batch = pending.get(className);
+            if (batch == null)
+            {
+                batch = new Batch(className);
+                pending.put(className, batch);
+                leader = true;
+            }
+            result = batch.keys.computeIfAbsent(key, k -> new CompletableFuture<>());
+            if (batch.keys.size() >= maxBatchSize)
+            {
+                // Full, so callers from now on start a new batch
+                pending.remove(className, batch);
+            }
+        }
+
+        if (leader)
+        {
+            LockSupport.parkNanos(windowNanos);
+            synchronized (pending)
+            {
+                pending.remove(className, batch);
+            }
+            batch.load(loader);
+        }
+        return result.join();
+    }
+
+    /**
+     * Method to load the objects of a class with the provided keys, with a single query on the primary key.
+     * @param pm The PersistenceManager
+     * @param cmd Metadata of the class
+     * @param keys The keys
+     * @return The objects found, mapped by key
+     */
+    private static Map<Object, Object> load(JDOPersistenceManager pm, AbstractClassMetaData cmd, Set<Object> keys)
+    {
+        Map<Object, Object> objectsByKey = new HashMap<>();
+        ClassLoaderResolver clr = pm.getExecutionContext().getClassLoaderResolver();
+        String pkName = cmd.getMetaDataForManagedMemberAtAbsolutePosition(cmd.getPKMemberPositions()[0]).getName();
+        Class<?> cls = clr.classForName(cmd.getFullClassName());
+        Query<?> query = pm.newQuery(cls, ":keys.contains(" + pkName + ")");
+        try
+        {
+            for (Object pc : (Collection<?>)query.execute(keys))
+            {
+                objectsByKey.put(IdentityUtils.getTargetKeyForSingleFieldIdentity(pm.getObjectId(pc)), pc);
+            }
+        }
+        finally
+        {
+            query.closeAll();
+        }
+        PersistenceManagerImpl.LOGGER.debug("Coalesced " + keys.size() + " getObjectById calls for " + cmd.getFullClassName() + " into one query");
+        return objectsByKey;
+    }
+
+    /**
+     * Batch of keys of objects of a class, with the future result of each.
+     */
+    private static class Batch
+    {
+        final String className;
+
+        /** Future object per key. Guarded by the lock on the pending batches until the batch is loaded. */
+        final Map<Object, CompletableFuture<Object>> keys = new LinkedHashMap<>();
+
+        Batch(String className)
+        {
+            this.className = className;
+        }
+
+        /**
+         * Method to load the objects of the batch, and complete the future of each with its object (or null if not found).
+         * A batch of a single key is not loaded, since its caller can look it up as usual.
+         * @param loader Function loading the objects with the provided keys
+         */
+        void load(Function<Set<Object>, Map<Object, Object>> loader)
+        {
+            Map<Object, Object> objectsByKey = new HashMap<>();
+            try
+            {
+                if (keys.size() > 1)
+                {
+                    objectsByKey = loader.apply(keys.keySet());
+                }
+            }
+            catch (JDOException e)
+            {
+                PersistenceManagerImpl.LOGGER.debug("Unable to load " + keys.size() + " objects of " + className + " in a batch : " + e);
+            }
+            finally
+            {
+                for (Map.Entry<Object, CompletableFuture<Object>> entry : keys.entrySet())
+                {
+                    entry.getValue().complete(objectsByKey.get(entry.getKey()));
+                }
+            }
+        }
+    }
+}
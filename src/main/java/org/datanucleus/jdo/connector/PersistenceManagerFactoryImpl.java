@@ -89,7 +89,7 @@ public class PersistenceManagerFactoryImpl implements ConnectionFactory, Persist
 
     public ResourceAdapterMetaData getMetaData() throws ResourceException
     {
-        throw new ResourceException("Not Yet Implemented");
+        return new ResourceAdapterMetaDataImpl(mcf);
     }
 
     public RecordFactory getRecordFactory() throws ResourceException
@@ -116,6 +116,43 @@ public class PersistenceManagerFactoryImpl implements ConnectionFactory, Persist
         }
     }
 
+    /**
+     * Accessor for a read-only PersistenceManager. This uses the secondary connection factory
+     * (ConnectionFactory2Name) for all datastore access, reads non-transactionally, and is never
+     * enlisted in XA transactions.
+     * @return PersistenceManager
+     */
+    public PersistenceManager getReadOnlyPersistenceManager()
+    {
+        try 
+        {
+            return (PersistenceManager)cm.allocateConnection(mcf, ConnectionRequestInfoImpl.READ_ONLY);
+        }
+        catch (ResourceException e)
+        {
+            throw new JDOException("Problem getting read-only PersistenceManager:", new Exception[] {e});
+        }
+    }
+
+    /**
+     * Accessor for a PersistenceManager for the specified tenant.
+     * When a tenant connection factory is configured this uses the PMF of that tenant, otherwise the
+     * shared PMF with the tenant id set on the PersistenceManager.
+     * @param tenantId The tenant id
+     * @return PersistenceManager
+     */
+    public PersistenceManager getPersistenceManagerForTenant(String tenantId)
+    {
+        try 
+        {
+            return (PersistenceManager)cm.allocateConnection(mcf, new ConnectionRequestInfoImpl(false, tenantId));
+        }
+        catch (ResourceException e)
+        {
+            throw new JDOException("Problem getting PersistenceManager for tenant " + tenantId + ":", new Exception[] {e});
+        }
+    }
+
     /**
      *
      * @param user Username
@@ -308,6 +345,34 @@ public class PersistenceManagerFactoryImpl implements ConnectionFactory, Persist
     public void close()
     {
     	mcf.getPersistenceManagerFactory().close();
+        mcf.getStatistics().unregister();
+        mcf.leakDetector.stop();
+        if (mcf.queryCache != null)
+        {
+            mcf.queryCache.clear();
+        }
+        mcf.closeDerivedPersistenceManagerFactories();
+        mcf.shutdownExecutors();
+    }
+
+    /**
+     * Method to add a listener to notify of the cost of each transaction completed by the container.
+     * Only notified when transaction cost reporting is enabled, by the TransactionCostListeners or TransactionCostLogging
+     * config property.
+     * @param listener The listener
+     */
+    public void addTransactionCostListener(TransactionCostListener listener)
+    {
+        mcf.addTransactionCostListener(listener);
+    }
+
+    /**
+     * Method to remove a listener of transaction costs.
+     * @param listener The listener
+     */
+    public void removeTransactionCostListener(TransactionCostListener listener)
+    {
+        mcf.removeTransactionCostListener(listener);
     }
 
     /**
@@ -22,11 +22,24 @@ Contributors:
 **********************************************************************/
 package org.datanucleus.jdo.connector;
 
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
 
 import javax.jdo.Extent;
 import javax.jdo.FetchGroup;
@@ -34,6 +47,7 @@ import javax.jdo.FetchPlan;
 import javax.jdo.JDOException;
 import javax.jdo.JDOFatalUserException;
 import javax.jdo.JDOQLTypedQuery;
+import javax.jdo.JDOUnsupportedOptionException;
 import javax.jdo.PersistenceManager;
 import javax.jdo.PersistenceManagerFactory;
 import javax.jdo.Query;
@@ -49,12 +63,18 @@ import javax.resource.cci.LocalTransaction;
 import javax.resource.cci.ResultSetInfo;
 
 import org.datanucleus.api.jdo.JDOPersistenceManager;
+import org.datanucleus.cache.Level1Cache;
+import org.datanucleus.identity.IdentityUtils;
 import org.datanucleus.util.Localiser;
 import org.datanucleus.util.NucleusLogger;
 
 /**
  * Implementation of the PersistenceManager for use in JCA environments.
  * An application handle associated with the {@link org.datanucleus.jdo.connector.ManagedConnectionImpl}.
+ * When the ManagedConnectionFactory is sharded, operations on objects or identities are routed to the shard of
+ * each object, and operations on all objects (such as evictAll and refreshAll) apply to every shard in use.
+ * Queries and extents are not supported across shards by this PersistenceManager, since they would only cover
+ * shard 0, so use {@link #newQueryForShard(Object, Class, String)} or {@link #queryAllShards(Class, String, Object...)}.
  */
 public class PersistenceManagerImpl implements Connection, PersistenceManager
 {
@@ -72,16 +92,36 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     /** Whether the PM is closed. */
     private boolean closed;
 
+    /** Time (millisecs) at which this handle was obtained. */
+    final long allocationTime = System.currentTimeMillis();
+
+    /** Call stack where this handle was obtained, when sampled for leak detection. */
+    Throwable allocationStack;
+
+    /** Whether this handle has been reported as a possible leak. */
+    volatile boolean leakReported;
+
+    /** Number of managed objects at which the transaction is next flushed and evicted, see {@link #checkFootprint()}. */
+    private int footprintLimit;
+
+    /** Asynchronous view of this handle. Created on first use. */
+    private AsyncPersistenceManager async;
+
+    /** Coalescer of concurrent getObjectById calls outside of a transaction, when enabled. */
+    private final ObjectByIdCoalescer objectByIdCoalescer;
+
     /**
      * Constructor.
      * @param mc The connection implementation.
      */
     public PersistenceManagerImpl(final ManagedConnectionImpl mc) 
     {
-        LOGGER.debug("Instantiating handle " + this + " for ManagedConnection " + mc);
-
         tx = new ApplicationLocalTransaction(this);
         setManagedConnection(mc);
+        ManagedConnectionFactoryImpl mcf = mc.getManagedConnectionFactory();
+        mcf.leakDetector.handleOpened(this);
+        objectByIdCoalescer = mcf.coalescingWindow > 0 ?
+            new ObjectByIdCoalescer(mcf.coalescingWindow, mcf.batchLoadSize > 0 ? mcf.batchLoadSize : 100) : null;
     }
 
     public JDOPersistenceManager getJDOPersistenceManager()
@@ -115,7 +155,12 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
 
     public ConnectionMetaData getMetaData() throws ResourceException
     {
-        throw new ResourceException("Not Yet Implemented");
+        ManagedConnectionImpl currentMc = mc;
+        if (closed || currentMc == null)
+        {
+            throw new ResourceException("Connection handle is closed or not associated with a ManagedConnection");
+        }
+        return currentMc.getMetaData();
     }
 
     public Interaction createInteraction() throws ResourceException
@@ -148,14 +193,26 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void close()
     {
         assertIsOpen();
-        LOGGER.debug("Closing handle "+this);
-
+        ConnectorEvents.HandleCloseEvent event = new ConnectorEvents.HandleCloseEvent();
+        event.begin();
         if (pm != null) 
         {
+            mc.trace(TraceBuffer.Event.HANDLE_CLOSED, this, 0);
+            mc.getManagedConnectionFactory().leakDetector.handleClosed(this);
+            long flushStart = System.nanoTime();
             pm.flush();
+            long flushNanos = System.nanoTime() - flushStart;
+            event.flushDuration = flushNanos;
+            mc.getManagedConnectionFactory().slowOperations.check(SlowOperationDetector.Operation.FLUSH, flushNanos, mc, "on close");
             mc.notifyClosed(this);
         }
         closed = true;
+        if (event.shouldCommit())
+        {
+            event.managedConnection = ConnectorEvents.identity(mc);
+            event.handle = ConnectorEvents.identity(this);
+            event.commit();
+        }
     }
 
     /**
@@ -192,7 +249,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void refresh(Object o)
     {
         checkStatus();
-        pm.refresh(o);
+        getPersistenceManagerForObject(o).refresh(o);
     }
 
     /**
@@ -203,7 +260,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void retrieve(Object o, boolean fgOnly)
     {
         checkStatus();
-        pm.retrieve(o, fgOnly);
+        getPersistenceManagerForObject(o).retrieve(o, fgOnly);
     }
 
     /**
@@ -213,7 +270,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void retrieve(Object o)
     {
         checkStatus();
-        pm.retrieve(o);
+        getPersistenceManagerForObject(o).retrieve(o);
     }
 
     /**
@@ -223,7 +280,10 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void retrieveAll(Collection pcs)
     {
         checkStatus();
-        pm.retrieveAll(pcs);
+        BatchLoader batchLoader = getBatchLoader();
+        List<Object> loaded = batchLoader != null ? batchLoader.loadHollow(pcs) : null;
+        forEachShard(pcs, (shardPm, shardPcs) -> shardPm.retrieveAll(shardPcs));
+        Reference.reachabilityFence(loaded);
     }
 
     /**
@@ -232,8 +292,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
      */
     public void retrieveAll(Object... pcs)
     {
-        checkStatus();
-        pm.retrieveAll(pcs);
+        retrieveAll(Arrays.asList(pcs));
     }
 
     /**
@@ -250,7 +309,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
      */
     public void retrieveAll(Object[] pcs, boolean fgOnly)
     {
-        pm.retrieveAll(fgOnly, pcs);
+        retrieveAll(Arrays.asList(pcs), fgOnly);
     }
 
     /**
@@ -261,7 +320,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
      */
     public void retrieveAll(boolean fgOnly, Object... pcs)
     {
-        pm.retrieveAll(fgOnly, pcs);
+        retrieveAll(Arrays.asList(pcs), fgOnly);
     }
 
     /** Retrieve field values of instances from the store.  This tells
@@ -277,7 +336,8 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
      */
     public void retrieveAll(Collection pcs, boolean fgOnly)
     {
-        pm.retrieveAll(pcs, fgOnly);
+        checkStatus();
+        forEachShard(pcs, (shardPm, shardPcs) -> shardPm.retrieveAll(shardPcs, fgOnly));
     }
 
     /**
@@ -296,7 +356,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void evict(Object o)
     {
         checkStatus();
-        pm.evict(o);
+        getPersistenceManagerForObject(o).evict(o);
     }
 
     /**
@@ -305,8 +365,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
      **/
     public void evictAll(Object... os)
     {
-        checkStatus();
-        pm.evictAll(os);
+        evictAll(Arrays.asList(os));
     }
 
     /**
@@ -316,7 +375,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void evictAll(Collection os)
     {
         checkStatus();
-        pm.evictAll(os);
+        forEachShard(os, (shardPm, shardOs) -> shardPm.evictAll(shardOs));
     }
 
     /**
@@ -326,8 +385,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
      */
     public synchronized void evictAll(Class cls, boolean subclasses)
     {
-        checkStatus();
-        pm.evictAll(subclasses, cls);
+        evictAll(subclasses, cls);
     }
 
     /**
@@ -338,7 +396,10 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public synchronized void evictAll(boolean subclasses, Class cls)
     {
         checkStatus();
-        pm.evictAll(subclasses, cls);
+        for (JDOPersistenceManager shardPm : getPersistenceManagersInUse())
+        {
+            shardPm.evictAll(subclasses, cls);
+        }
     }
 
     /**
@@ -347,7 +408,10 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void evictAll()
     {
        checkStatus();
-       pm.evictAll();
+       for (JDOPersistenceManager shardPm : getPersistenceManagersInUse())
+       {
+           shardPm.evictAll();
+       }
     }
 
     /**
@@ -356,8 +420,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
      **/
     public void refreshAll(Object... os)
     {
-        checkStatus();
-        pm.refreshAll(os);
+        refreshAll(Arrays.asList(os));
     }
 
     /**
@@ -367,7 +430,19 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void refreshAll(Collection os)
     {
         checkStatus();
-        pm.refreshAll(os);
+        BatchLoader batchLoader = getBatchLoader();
+        if (batchLoader == null)
+        {
+            forEachShard(os, (shardPm, shardOs) -> shardPm.refreshAll(shardOs));
+            return;
+        }
+        List<Object> others = new ArrayList<>();
+        List<Object> loaded = batchLoader.reload(os, others);
+        if (!others.isEmpty())
+        {
+            forEachShard(others, (shardPm, shardOs) -> shardPm.refreshAll(shardOs));
+        }
+        Reference.reachabilityFence(loaded);
     }
 
     /**
@@ -377,16 +452,50 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void refreshAll(JDOException exc)
     {
         checkStatus();
+        if (mc.isSharded())
+        {
+            List<Object> failed = new ArrayList<>();
+            addFailedObjects(exc, failed);
+            refreshAll(failed);
+            return;
+        }
         pm.refreshAll(exc);
     }
 
+    /**
+     * Convenience method to collect the objects that failed in an exception and its nested exceptions.
+     * @param exc The exception
+     * @param failed The failed objects to add to
+     */
+    private static void addFailedObjects(JDOException exc, List<Object> failed)
+    {
+        if (exc.getFailedObject() != null)
+        {
+            failed.add(exc.getFailedObject());
+        }
+        Throwable[] nested = exc.getNestedExceptions();
+        if (nested != null)
+        {
+            for (Throwable t : nested)
+            {
+                if (t instanceof JDOException)
+                {
+                    addFailedObjects((JDOException)t, failed);
+                }
+            }
+        }
+    }
+
     /**
      * Method to refresh all objects in the Persistence Manager.
      */
     public void refreshAll()
     {
         checkStatus();
-        pm.refreshAll();
+        for (JDOPersistenceManager shardPm : getPersistenceManagersInUse())
+        {
+            shardPm.refreshAll();
+        }
     }
 
     /**
@@ -396,7 +505,8 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public Query newQuery()
     {
         checkStatus();
-        return pm.newQuery();
+        checkNotSharded("Queries");
+        return wrapQuery(pm.newQuery());
     }
 
     /**
@@ -407,7 +517,8 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public Query newQuery(Object obj)
     {
         checkStatus();
-        return pm.newQuery(obj);
+        checkNotSharded("Queries");
+        return wrapQuery(pm.newQuery(QueryStatistics.unwrap(obj)));
     }
 
     /**
@@ -418,7 +529,9 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public Query newQuery(String query)
     {
         checkStatus();
-        return pm.newQuery(query);
+        checkNotSharded("Queries");
+        CompiledQueryCache queryCache = getQueryCache();
+        return wrapQuery(queryCache != null ? queryCache.newQuery(pm, query) : pm.newQuery(query));
     }
 
     /**
@@ -430,7 +543,8 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public Query newQuery(String language, Object query)
     {
         checkStatus();
-        return pm.newQuery(language, query);
+        checkNotSharded("Queries");
+        return wrapQuery(pm.newQuery(language, query));
     }
 
     /**
@@ -441,7 +555,9 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public Query newQuery(Class cls)
     {
         checkStatus();
-        return pm.newQuery(cls);
+        checkNotSharded("Queries");
+        awaitClass(cls);
+        return wrapQuery(pm.newQuery(cls));
     }
 
     /**
@@ -452,7 +568,8 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public Query newQuery(Extent ext)
     {
         checkStatus();
-        return pm.newQuery(ext);
+        checkNotSharded("Queries");
+        return wrapQuery(pm.newQuery(ext));
     }
 
     /**
@@ -464,7 +581,9 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public Query newQuery(Class cls, Collection cln)
     {
         checkStatus();
-        return pm.newQuery(cls, cln);
+        checkNotSharded("Queries");
+        awaitClass(cls);
+        return wrapQuery(pm.newQuery(cls, cln));
     }
 
     /**
@@ -476,7 +595,64 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public Query newQuery(Class cls, String filter)
     {
         checkStatus();
-        return pm.newQuery(cls, filter);
+        checkNotSharded("Queries");
+        awaitClass(cls);
+        CompiledQueryCache queryCache = getQueryCache();
+        return wrapQuery(queryCache != null ? queryCache.newQuery(pm, cls, filter) : pm.newQuery(cls, filter));
+    }
+
+    /**
+     * Method to flush the active transaction and evict its clean objects when the number of objects managed by the
+     * PersistenceManager has reached the footprint threshold of the connection factory. The threshold is then raised
+     * by the number of objects still managed, so that a transaction holding on to its objects isn't flushed on each call.
+     */
+    private void checkFootprint()
+    {
+        int threshold = mc.getManagedConnectionFactory().footprintThreshold;
+        if (threshold <= 0 || mc.isSharded())
+        {
+            return;
+        }
+        Level1Cache l1Cache = pm.getExecutionContext().getLevel1Cache();
+        int managed = l1Cache != null ? l1Cache.size() : 0;
+        if (managed < threshold)
+        {
+            footprintLimit = 0;
+            return;
+        }
+        if (managed < footprintLimit || !pm.currentTransaction().isActive())
+        {
+            return;
+        }
+        pm.flush();
+        pm.evictAll();
+        footprintLimit = l1Cache.size() + threshold;
+        if (LOGGER.isDebugEnabled())
+        {
+            LOGGER.debug("Flushed and evicted transaction of " + mc + " managing " + managed + " objects, " + l1Cache.size() + " left managed");
+        }
+    }
+
+    /**
+     * Accessor for a loader of objects in batches, when enabled by the connection factory and not sharded.
+     * @return The batch loader, or null
+     */
+    private BatchLoader getBatchLoader()
+    {
+        int batchSize = mc.getManagedConnectionFactory().batchLoadSize;
+        return batchSize > 0 && !mc.isSharded() ? new BatchLoader(pm, batchSize) : null;
+    }
+
+    /**
+     * Accessor for the compiled query cache of the connection factory, when applicable to this handle. Only queries of
+     * the primary PMF are cached.
+     * @return The query cache, or null
+     */
+    private CompiledQueryCache getQueryCache()
+    {
+        ManagedConnectionFactoryImpl mcf = mc.getManagedConnectionFactory();
+        CompiledQueryCache queryCache = mcf.queryCache;
+        return queryCache != null && pm.getPersistenceManagerFactory() == mcf.pmf ? queryCache : null;
     }
 
     /**
@@ -489,7 +665,8 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public Query newQuery(Class cls, Collection cln, String filter)
     {
         checkStatus();
-        return pm.newQuery(cls, cln, filter);
+        awaitClass(cls);
+        return wrapQuery(pm.newQuery(cls, cln, filter));
     }
 
     /**
@@ -501,7 +678,8 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public Query newQuery(Extent cln, String filter)
     {
         checkStatus();
-        return pm.newQuery(cln, filter);
+        checkNotSharded("Queries");
+        return wrapQuery(pm.newQuery(cln, filter));
     }
 
     /* (non-Javadoc)
@@ -511,7 +689,9 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public <T> JDOQLTypedQuery<T> newJDOQLTypedQuery(Class<T> cls)
     {
         checkStatus();
-        return pm.newJDOQLTypedQuery(cls);
+        checkNotSharded("Queries");
+        awaitClass(cls);
+        return wrapQuery(pm.newJDOQLTypedQuery(cls));
     }
 
     /**
@@ -523,7 +703,9 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public Query newNamedQuery(Class cls, String queryName)
     {
         checkStatus();
-        return pm.newNamedQuery(cls, queryName);
+        checkNotSharded("Queries");
+        awaitClass(cls);
+        return wrapQuery(pm.newNamedQuery(cls, queryName));
     }
 
     /**
@@ -535,6 +717,8 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public Extent getExtent(Class cls, boolean subclasses)
     {
         checkStatus();
+        checkNotSharded("Extents");
+        awaitClass(cls);
         return pm.getExtent(cls, subclasses);
     }
 
@@ -546,8 +730,80 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public Extent getExtent(Class cls)
     {
         checkStatus();
+        checkNotSharded("Extents");
+        awaitClass(cls);
         return pm.getExtent(cls);
     }
+
+    /**
+     * Method to iterate over the extent of a candidate class with constant memory use, such as to scan a whole table.
+     * Each object is evicted once the iterator has moved past it, unless changed.
+     * Closing the iterator ends the iteration early.
+     * @param cls The candidate class
+     * @param subclasses Whether to include subclasses
+     * @param fetchSize JDBC fetch size, or 0 for the default
+     * @return Iterator over the objects of the extent
+     * @param <T> Type of the candidate class
+     */
+    public <T> StreamingQueryIterator<T> iterateExtent(Class<T> cls, boolean subclasses, int fetchSize)
+    {
+        checkStatus();
+        checkNotSharded("Extents");
+        awaitClass(cls);
+        return new StreamingQueryIterator<>(pm, wrapQuery(pm.newQuery(pm.getExtent(cls, subclasses))), fetchSize);
+    }
+
+    /**
+     * Method to execute a query of this handle and iterate over its results with constant memory use.
+     * Each persistent result is evicted once the iterator has moved past it, unless changed.
+     * Closing the iterator ends the iteration early.
+     * @param query The query
+     * @param fetchSize JDBC fetch size, or 0 for the default
+     * @param parameters The query parameters
+     * @return Iterator over the results
+     * @param <T> Type of the results
+     */
+    public <T> StreamingQueryIterator<T> iterate(Query<?> query, int fetchSize, Object... parameters)
+    {
+        checkStatus();
+        return new StreamingQueryIterator<>(query.getPersistenceManager(), query, fetchSize, parameters);
+    }
+
+    /**
+     * Accessor for an asynchronous view of this handle, with operations returning a CompletionStage and running (one at a time)
+     * on the asynchronous executor of the connection factory, within the datastore transaction of the thread issuing them.
+     * Operations cannot be issued within an optimistic transaction.
+     * @return The asynchronous view
+     */
+    public synchronized AsyncPersistenceManager async()
+    {
+        checkStatus();
+        if (async == null)
+        {
+            async = new AsyncPersistenceManager(this, mc.getManagedConnectionFactory().getAsyncExecutor());
+        }
+        return async;
+    }
+
+    /**
+     * Method to publish the results of a query of this handle to a single subscriber, with backpressure. The query is executed
+     * on the first request, and results are read from the cursor only as requested, each being evicted once the next is read.
+     * Results are emitted on the thread requesting them. Once all results have been published, or on error or cancellation,
+     * the query is closed and, if <cite>closeHandle</cite>, so is this handle, releasing its ManagedConnection.
+     * The subscription must complete within the request or transaction of the component that obtained this handle, since the
+     * container then reclaims its ManagedConnection, after which the subscriber is signalled an error on its next request.
+     * @param query The query
+     * @param fetchSize JDBC fetch size, or 0 for the default
+     * @param closeHandle Whether to close this handle when done
+     * @param parameters The query parameters
+     * @return The publisher
+     * @param <T> Type of the results
+     */
+    public <T> Flow.Publisher<T> publish(Query<?> query, int fetchSize, boolean closeHandle, Object... parameters)
+    {
+        checkStatus();
+        return new QueryPublisher<>(this, query, fetchSize, closeHandle, parameters);
+    }
     
     /**
      * Accessor for the current FetchPlan
@@ -579,43 +835,95 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public Object getObjectById(Object id, boolean validate)
     {
         checkStatus();
-        return pm.getObjectById(id, validate);
+        checkFootprint();
+        mc.getManagedConnectionFactory().awaitClass(IdentityUtils.getTargetClassNameForIdentity(id));
+        long start = System.nanoTime();
+        try
+        {
+            if (validate && objectByIdCoalescer != null && pm.getMultithreaded() && !mc.isSharded() && !pm.currentTransaction().isActive())
+            {
+                Object pc = objectByIdCoalescer.getObjectById(pm, id);
+                if (pc != null)
+                {
+                    return pc;
+                }
+            }
+            return getPersistenceManagerForIdentity(id).getObjectById(id, validate);
+        }
+        finally
+        {
+            mc.getManagedConnectionFactory().slowOperations.completed(SlowOperationDetector.Operation.GET_OBJECT_BY_ID, start, mc, id);
+        }
     }
 
     public Collection getObjectsById (Collection oids)
     {
-        checkStatus();
-        return pm.getObjectsById(oids);
+        return getObjectsById(oids, true);
     }
 
     public Object[] getObjectsById (Object... oids)
     {
-        checkStatus();
-        return pm.getObjectsById(oids);
+        return getObjectsById(true, oids);
     }
 
     public Collection getObjectsById (Collection oids, boolean validate)
     {
         checkStatus();
-        return pm.getObjectsById(oids, validate);
+        checkFootprint();
+        if (mc.isSharded())
+        {
+            return Arrays.asList(getObjectsById(validate, oids.toArray()));
+        }
+        BatchLoader batchLoader = validate ? getBatchLoader() : null; // Without validation, no datastore access
+        List<Object> loaded = batchLoader != null ? batchLoader.loadIdentities(oids) : null;
+        Collection<?> objs = pm.getObjectsById(oids, validate);
+        Reference.reachabilityFence(loaded);
+        return objs;
     }
 
     public Object[] getObjectsById (Object[] oids, boolean validate)
     {
-        checkStatus();
-        return pm.getObjectsById(validate, oids);
+        return getObjectsById(validate, oids);
     }
 
     public Object[] getObjectsById (boolean validate, Object... oids)
     {
         checkStatus();
-        return pm.getObjectsById(validate, oids);
+        checkFootprint();
+        if (mc.isSharded())
+        {
+            Object[] objs = new Object[oids.length];
+            for (int i = 0; i < oids.length; i++)
+            {
+                objs[i] = getPersistenceManagerForIdentity(oids[i]).getObjectById(oids[i], validate);
+            }
+            return objs;
+        }
+        BatchLoader batchLoader = validate ? getBatchLoader() : null; // Without validation, no datastore access
+        List<Object> loaded = batchLoader != null ? batchLoader.loadIdentities(Arrays.asList(oids)) : null;
+        Object[] objs = pm.getObjectsById(validate, oids);
+        Reference.reachabilityFence(loaded);
+        return objs;
     }
 
     public Object getObjectById (Class cls, Object key)
     {
         checkStatus();
-        return pm.getObjectById(cls, key);
+        checkFootprint();
+        awaitClass(cls);
+        if (mc.isSharded() || (objectByIdCoalescer != null && pm.getMultithreaded()))
+        {
+            return getObjectById(pm.newObjectIdInstance(cls, key), true);
+        }
+        long start = System.nanoTime();
+        try
+        {
+            return pm.getObjectById(cls, key);
+        }
+        finally
+        {
+            mc.getManagedConnectionFactory().slowOperations.completed(SlowOperationDetector.Operation.GET_OBJECT_BY_ID, start, mc, key);
+        }
     }
 
     public Object newObjectIdInstance (Class pcClass, Object key)
@@ -665,7 +973,9 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public Object makePersistent(Object pc)
     {
         checkStatus();
-        return pm.makePersistent(pc);
+        checkFootprint();
+        awaitClass(pc.getClass());
+        return getPersistenceManagerForObject(pc).makePersistent(pc);
     }
 
     /**
@@ -675,7 +985,26 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public Object[] makePersistentAll(Object... pcs)
     {
         checkStatus();
-        return pm.makePersistentAll(pcs);
+        checkFootprint();
+        long start = System.nanoTime();
+        try
+        {
+            if (mc.isSharded())
+            {
+                Object[] persisted = new Object[pcs.length];
+                for (int i = 0; i < pcs.length; i++)
+                {
+                    persisted[i] = getPersistenceManagerForObject(pcs[i]).makePersistent(pcs[i]);
+                }
+                return persisted;
+            }
+            return pm.makePersistentAll(pcs);
+        }
+        finally
+        {
+            mc.getManagedConnectionFactory().slowOperations.completed(SlowOperationDetector.Operation.MAKE_PERSISTENT_ALL, start, mc,
+                pcs.length, "objects");
+        }
     }
 
     /**
@@ -685,7 +1014,64 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public Collection makePersistentAll(Collection pcs)
     {
         checkStatus();
-        return pm.makePersistentAll(pcs);
+        checkFootprint();
+        if (mc.isSharded())
+        {
+            return Arrays.asList(makePersistentAll(pcs.toArray()));
+        }
+        long start = System.nanoTime();
+        try
+        {
+            return pm.makePersistentAll(pcs);
+        }
+        finally
+        {
+            mc.getManagedConnectionFactory().slowOperations.completed(SlowOperationDetector.Operation.MAKE_PERSISTENT_ALL, start, mc,
+                pcs.size(), "objects");
+        }
+    }
+
+    /**
+     * Method to persist a stream of objects with bounded memory, such as for bulk imports. The objects are persisted in chunks
+     * with makePersistentAll, each chunk being flushed (with its INSERTs batched) and its objects then released from the
+     * transaction and the Level 1 cache, so that they are not kept until commit. The objects persisted are therefore
+     * transient once this returns, whatever the outcome of the transaction, and changes to them are not persisted.
+     * @param objects The objects to persist
+     * @param chunkSize Number of objects to persist per chunk
+     * @param progress Consumer of the number of objects persisted so far, called after each chunk (or null)
+     * @return The number of objects persisted
+     */
+    public long makePersistentAll(Iterator<?> objects, int chunkSize, LongConsumer progress)
+    {
+        checkStatus();
+        if (mc.isSharded())
+        {
+            throw new JDOUnsupportedOptionException("Persisting a stream of objects is not supported on a sharded connection");
+        }
+        long start = System.nanoTime();
+        long count = 0;
+        try
+        {
+            count = new ChunkedPersister(pm, chunkSize).persist(objects, progress);
+            return count;
+        }
+        finally
+        {
+            mc.getManagedConnectionFactory().slowOperations.completed(SlowOperationDetector.Operation.MAKE_PERSISTENT_ALL, start, mc,
+                count, "objects (chunked)");
+        }
+    }
+
+    /**
+     * Method to persist a stream of objects with bounded memory. See {@link #makePersistentAll(Iterator, int, LongConsumer)}.
+     * @param objects The objects to persist
+     * @param chunkSize Number of objects to persist per chunk
+     * @param progress Consumer of the number of objects persisted so far, called after each chunk (or null)
+     * @return The number of objects persisted
+     */
+    public long makePersistentAll(Stream<?> objects, int chunkSize, LongConsumer progress)
+    {
+        return makePersistentAll(objects.iterator(), chunkSize, progress);
     }
 
     /**
@@ -695,7 +1081,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void deletePersistent(Object pc)
     {
         checkStatus();
-        pm.deletePersistent(pc);
+        getPersistenceManagerForObject(pc).deletePersistent(pc);
     }
 
     /**
@@ -705,6 +1091,14 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void deletePersistentAll(Object... pcs)
     {
         checkStatus();
+        if (mc.isSharded())
+        {
+            for (Object pc : pcs)
+            {
+                getPersistenceManagerForObject(pc).deletePersistent(pc);
+            }
+            return;
+        }
         pm.deletePersistentAll(pcs);
     }
 
@@ -715,6 +1109,11 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void deletePersistentAll(Collection pcs)
     {
         checkStatus();
+        if (mc.isSharded())
+        {
+            deletePersistentAll(pcs.toArray());
+            return;
+        }
         pm.deletePersistentAll(pcs);
     }
 
@@ -726,7 +1125,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void makeTransient(Object pc, boolean useFetchPlan)
     {
         checkStatus();
-        pm.makeTransient(pc, useFetchPlan);
+        getPersistenceManagerForObject(pc).makeTransient(pc, useFetchPlan);
     }
 
     /**
@@ -736,8 +1135,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
      */
     public void makeTransientAll(Object[] pcs, boolean useFetchPlan)
     {
-        checkStatus();
-        pm.makeTransientAll(useFetchPlan, pcs);
+        makeTransientAll(Arrays.asList(pcs), useFetchPlan);
     }
 
     /**
@@ -748,8 +1146,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
      */
     public void makeTransientAll(boolean useFetchPlan, Object... pcs)
     {
-        checkStatus();
-        pm.makeTransientAll(useFetchPlan, pcs);
+        makeTransientAll(Arrays.asList(pcs), useFetchPlan);
     }
 
     /**
@@ -760,7 +1157,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void makeTransientAll(Collection pcs, boolean useFetchPlan)
     {
         checkStatus();
-        pm.makeTransientAll(pcs, useFetchPlan);
+        forEachShard(pcs, (shardPm, shardPcs) -> shardPm.makeTransientAll(shardPcs, useFetchPlan));
     }
 
     /**
@@ -770,7 +1167,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void makeTransient(Object pc)
     {
         checkStatus();
-        pm.makeTransient(pc);
+        getPersistenceManagerForObject(pc).makeTransient(pc);
     }
 
     /**
@@ -779,8 +1176,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
      */
     public void makeTransientAll(Object... pcs)
     {
-        checkStatus();
-        pm.makeTransientAll(pcs);
+        makeTransientAll(Arrays.asList(pcs));
     }
 
     /**
@@ -790,7 +1186,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void makeTransientAll(Collection pcs)
     {
         checkStatus();
-        pm.makeTransientAll(pcs);
+        forEachShard(pcs, (shardPm, shardPcs) -> shardPm.makeTransientAll(shardPcs));
     }
 
     /**
@@ -800,7 +1196,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void makeTransactional(Object pc)
     {
         checkStatus();
-        pm.makeTransactional(pc);
+        getPersistenceManagerForObject(pc).makeTransactional(pc);
     }
 
     /**
@@ -809,8 +1205,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
      */
     public void makeTransactionalAll(Object... pcs)
     {
-        checkStatus();
-        pm.makeTransactionalAll(pcs);
+        makeTransactionalAll(Arrays.asList(pcs));
     }
 
     /**
@@ -820,7 +1215,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void makeTransactionalAll(Collection pcs)
     {
         checkStatus();
-        pm.makeTransactionalAll(pcs);
+        forEachShard(pcs, (shardPm, shardPcs) -> shardPm.makeTransactionalAll(shardPcs));
     }
 
     /**
@@ -830,7 +1225,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void makeNontransactional(Object pc)
     {
         checkStatus();
-        pm.makeNontransactional(pc);
+        getPersistenceManagerForObject(pc).makeNontransactional(pc);
     }
 
     /**
@@ -839,8 +1234,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
      */
     public void makeNontransactionalAll(Object... pcs)
     {
-        checkStatus();
-        pm.makeNontransactionalAll(pcs);
+        makeNontransactionalAll(Arrays.asList(pcs));
     }
 
     /**
@@ -850,7 +1244,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void makeNontransactionalAll(Collection pcs)
     {
         checkStatus();
-        pm.makeNontransactionalAll(pcs);
+        forEachShard(pcs, (shardPm, shardPcs) -> shardPm.makeNontransactionalAll(shardPcs));
     }
 
     /**
@@ -863,7 +1257,15 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public synchronized Object detachCopy(Object pc)
     {
         checkStatus();
-        return pm.detachCopy(pc);
+        long start = System.nanoTime();
+        try
+        {
+            return getPersistenceManagerForObject(pc).detachCopy(pc);
+        }
+        finally
+        {
+            mc.getManagedConnectionFactory().slowOperations.completed(SlowOperationDetector.Operation.DETACH_COPY, start, mc, null);
+        }
     }
 
     /**
@@ -888,7 +1290,25 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public synchronized Object[] detachCopyAll(Object... pcs)
     {
         checkStatus();
-        return pm.detachCopyAll(pcs);
+        long start = System.nanoTime();
+        try
+        {
+            if (mc.isSharded())
+            {
+                Object[] detached = new Object[pcs.length];
+                for (int i = 0; i < pcs.length; i++)
+                {
+                    detached[i] = getPersistenceManagerForObject(pcs[i]).detachCopy(pcs[i]);
+                }
+                return detached;
+            }
+            return pm.detachCopyAll(pcs);
+        }
+        finally
+        {
+            mc.getManagedConnectionFactory().slowOperations.completed(SlowOperationDetector.Operation.DETACH_COPY, start, mc,
+                pcs.length, "objects");
+        }
     }
 
     /**
@@ -900,7 +1320,20 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public synchronized Collection detachCopyAll(Collection pcs)
     {
         checkStatus();
-        return pm.detachCopyAll(pcs);
+        long start = System.nanoTime();
+        try
+        {
+            if (mc.isSharded())
+            {
+                return Arrays.asList(detachCopyAll(pcs.toArray()));
+            }
+            return pm.detachCopyAll(pcs);
+        }
+        finally
+        {
+            mc.getManagedConnectionFactory().slowOperations.completed(SlowOperationDetector.Operation.DETACH_COPY, start, mc,
+                pcs.size(), "objects");
+        }
     }
 
     /**
@@ -1046,7 +1479,15 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
     public void flush()
     {
         checkStatus();
-        pm.flush();
+        long start = System.nanoTime();
+        try
+        {
+            pm.flush();
+        }
+        finally
+        {
+            mc.getManagedConnectionFactory().slowOperations.completed(SlowOperationDetector.Operation.FLUSH, start, mc, null);
+        }
     }
 
     /**
@@ -1103,6 +1544,205 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
         pm.removeInstanceLifecycleListener(listener);
     }
 
+    // ---------------------------------------- Sharding ----------------------------------------
+
+    /**
+     * Method to create a query on the shard holding the object with the specified identity, for queries
+     * whose candidates are keyed by that identity. When not sharded this is the same as newQuery(cls, filter).
+     * @param id Identity deciding the shard
+     * @param cls Candidate class
+     * @param filter The filter
+     * @return The query
+     */
+    public Query<?> newQueryForShard(Object id, Class<?> cls, String filter)
+    {
+        checkStatus();
+        return wrapQuery(getPersistenceManagerForIdentity(id).newQuery(cls, filter));
+    }
+
+    /**
+     * Method to execute a JDOQL query on all shards and merge the results, in shard order.
+     * The shards are queried in parallel, except in an optimistic transaction where they are queried one after the
+     * other on the calling thread. In a datastore transaction (including any JTA transaction) the connection of each
+     * shard is first obtained on the calling thread, so that it is enlisted in the container transaction context
+     * before the queries run on other threads.
+     * Ordering applies within each shard only, so callers needing a global order must sort the returned list.
+     * @param cls Candidate class
+     * @param filter The filter
+     * @param parameters Values of the query parameters
+     * @return The merged results
+     * @param <T> Type of the candidate class
+     */
+    public <T> List<T> queryAllShards(Class<T> cls, String filter, Object... parameters)
+    {
+        checkStatus();
+        int numShards = mc.isSharded() ? mc.getManagedConnectionFactory().getNumberOfShards() : 1;
+        List<Callable<List<T>>> tasks = new ArrayList<>(numShards);
+        for (int i = 0; i < numShards; i++)
+        {
+            JDOPersistenceManager shardPm = mc.getPersistenceManager(i);
+            tasks.add(() -> executeQuery(shardPm, cls, filter, parameters));
+        }
+
+        List<T> results = new ArrayList<>();
+        Transaction txn = pm.currentTransaction();
+        if (numShards == 1 || (txn.isActive() && txn.getOptimistic()))
+        {
+            for (Callable<List<T>> task : tasks)
+            {
+                try
+                {
+                    results.addAll(task.call());
+                }
+                catch (RuntimeException e)
+                {
+                    throw e;
+                }
+                catch (Exception e)
+                {
+                    throw new JDOException("Exception querying shard", e);
+                }
+            }
+            return results;
+        }
+
+        if (txn.isActive())
+        {
+            for (int i = 0; i < numShards; i++)
+            {
+                mc.getPersistenceManager(i).getDataStoreConnection().close();
+            }
+        }
+
+        try
+        {
+            for (Future<List<T>> future : mc.getManagedConnectionFactory().getExecutor().invokeAll(tasks))
+            {
+                results.addAll(future.get());
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new JDOException("Interrupted while querying shards", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new JDOException("Exception querying shard", e.getCause());
+        }
+        return results;
+    }
+
+    private static <T> List<T> executeQuery(JDOPersistenceManager shardPm, Class<T> cls, String filter, Object[] parameters)
+    {
+        Query<T> q = shardPm.newQuery(cls, filter);
+        try
+        {
+            return new ArrayList<>(q.setParameters(parameters).executeList());
+        }
+        finally
+        {
+            q.closeAll();
+        }
+    }
+
+    /**
+     * Convenience method to wait until a class is ready for use, when the PMF is still preparing classes in the background.
+     * @param cls The class (or null)
+     */
+    private void awaitClass(Class<?> cls)
+    {
+        if (cls != null)
+        {
+            mc.getManagedConnectionFactory().awaitClass(cls.getName());
+        }
+    }
+
+    /**
+     * Convenience method to wrap a query so that its executions are recorded in the query statistics and checked
+     * for slowness, when enabled.
+     * @param query The query
+     * @return The query to return to the caller
+     */
+    private Query<?> wrapQuery(Query<?> query)
+    {
+        checkFootprint();
+        QueryStatistics queryStats = mc.getManagedConnectionFactory().getStatistics().getQueryStatistics();
+        return queryStats.isWrapping() ? queryStats.wrap(query, mc) : query;
+    }
+
+    private <T> JDOQLTypedQuery<T> wrapQuery(JDOQLTypedQuery<T> query)
+    {
+        checkFootprint();
+        QueryStatistics queryStats = mc.getManagedConnectionFactory().getStatistics().getQueryStatistics();
+        return queryStats.isWrapping() ? queryStats.wrap(query, mc) : query;
+    }
+
+    private JDOPersistenceManager getPersistenceManagerForIdentity(Object id)
+    {
+        return mc.isSharded() ? mc.getPersistenceManagerForIdentity(id) : pm;
+    }
+
+    private JDOPersistenceManager getPersistenceManagerForObject(Object pc)
+    {
+        return mc.isSharded() ? mc.getPersistenceManagerForObject(pc) : pm;
+    }
+
+    /**
+     * Convenience method to apply an operation to a collection of objects, on the PersistenceManager of each shard
+     * with the objects of that shard (or on the PersistenceManager with all objects when not sharded).
+     * @param pcs The objects
+     * @param operation The operation
+     */
+    private void forEachShard(Collection<?> pcs, BiConsumer<JDOPersistenceManager, Collection<?>> operation)
+    {
+        if (!mc.isSharded())
+        {
+            operation.accept(pm, pcs);
+            return;
+        }
+        Map<JDOPersistenceManager, List<Object>> pcsByShard = new LinkedHashMap<>();
+        for (Object pc : pcs)
+        {
+            pcsByShard.computeIfAbsent(getPersistenceManagerForObject(pc), k -> new ArrayList<>()).add(pc);
+        }
+        pcsByShard.forEach(operation);
+    }
+
+    /**
+     * Accessor for the PersistenceManagers of all shards opened by this connection, starting with shard 0
+     * (or just the PersistenceManager when not sharded).
+     * @return The PersistenceManagers
+     */
+    private List<JDOPersistenceManager> getPersistenceManagersInUse()
+    {
+        List<JDOPersistenceManager> pms = new ArrayList<>();
+        pms.add(pm);
+        if (mc.isSharded())
+        {
+            pms.addAll(mc.getShardPersistenceManagers());
+        }
+        return pms;
+    }
+
+    /**
+     * Convenience method to reject an operation that would only cover shard 0 on a sharded connection.
+     * @param operation Name of the operation, for the message
+     * @throws JDOUnsupportedOptionException if the connection is sharded
+     */
+    private void checkNotSharded(String operation)
+    {
+        if (mc.isSharded())
+        {
+            throw new JDOUnsupportedOptionException(operation + " are not supported on a sharded connection since they would only cover shard 0." +
+                " Use newQueryForShard or queryAllShards instead");
+        }
+    }
+
     /**
      * Convenience method to check the status of the adapter.
      */
@@ -1112,6 +1752,7 @@ public class PersistenceManagerImpl implements Connection, PersistenceManager
         {
             throw new JDOException("Invalid state, closed or no mc");
         }
+        mc.operationServed();
     }
 
     /**
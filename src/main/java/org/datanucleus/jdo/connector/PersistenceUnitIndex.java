@@ -0,0 +1,300 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.jdo.Constants;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.PersistenceNucleusContext;
+import org.datanucleus.PropertyNames;
+import org.datanucleus.api.jdo.JDOPersistenceManagerFactory;
+import org.datanucleus.enhancement.Persistable;
+import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.metadata.MetaDataUtils;
+import org.datanucleus.metadata.PersistenceUnitMetaData;
+
+/**
+ * Index of a persistence unit, resolved at build time so that the PMF can be created without parsing persistence.xml
+ * or scanning for persistent classes. It records the persistence unit properties, its mapping files, and the full list
+ * of classes with metadata (including those found by annotation scanning), all of which were checked to be enhanced.
+ * The index is written by {@link #main(String[])} into the connector jar (see the "pu-index" profile of the build),
+ * and read by {@link ManagedConnectionFactoryImpl} when creating the PMF for the same persistence unit.
+ */
+public class PersistenceUnitIndex
+{
+    /** Name of the index resource. */
+    public static final String RESOURCE_NAME = "META-INF/datanucleus-pu.idx";
+
+    private static final int MAGIC = 0x444E5055; // "DNPU"
+
+    private static final int VERSION = 1;
+
+    private final String unitName;
+
+    private final String transactionType;
+
+    private final Map<String, String> properties;
+
+    private final List<String> mappingFiles;
+
+    private final List<String> classNames;
+
+    PersistenceUnitIndex(String unitName, String transactionType, Map<String, String> properties, List<String> mappingFiles, List<String> classNames)
+    {
+        this.unitName = unitName;
+        this.transactionType = transactionType;
+        this.properties = properties;
+        this.mappingFiles = mappingFiles;
+        this.classNames = classNames;
+    }
+
+    public String getUnitName()
+    {
+        return unitName;
+    }
+
+    public List<String> getClassNames()
+    {
+        return classNames;
+    }
+
+    /**
+     * Accessor for the persistence unit metadata equivalent to the indexed persistence unit, listing all of its classes
+     * and excluding unlisted classes so that no scanning takes place.
+     * @return The persistence unit metadata
+     */
+    public PersistenceUnitMetaData getPersistenceUnitMetaData()
+    {
+        PersistenceUnitMetaData pumd = new PersistenceUnitMetaData(unitName, transactionType, null);
+        for (Map.Entry<String, String> entry : properties.entrySet())
+        {
+            pumd.addProperty(entry.getKey(), entry.getValue());
+        }
+        for (String mappingFile : mappingFiles)
+        {
+            pumd.addMappingFile(mappingFile);
+        }
+        pumd.addClassNames(new HashSet<>(classNames));
+        pumd.setExcludeUnlistedClasses(true);
+        return pumd;
+    }
+
+    /**
+     * Method to load the index from the specified class loader, if present and for the specified persistence unit.
+     * @param loader The class loader
+     * @param unitName Name of the persistence unit
+     * @return The index, or null if there is no index for this persistence unit
+     */
+    public static PersistenceUnitIndex load(ClassLoader loader, String unitName)
+    {
+        InputStream is = loader.getResourceAsStream(RESOURCE_NAME);
+        if (is == null)
+        {
+            return null;
+        }
+        try (InputStream in = is)
+        {
+            PersistenceUnitIndex index = read(in);
+            if (!index.unitName.equals(unitName))
+            {
+                PersistenceManagerImpl.LOGGER.debug("Ignoring persistence unit index for unit " + index.unitName + " since using unit " + unitName);
+                return null;
+            }
+            return index;
+        }
+        catch (IOException e)
+        {
+            PersistenceManagerImpl.LOGGER.warn("Unable to read persistence unit index " + RESOURCE_NAME + ", so the persistence unit will be resolved at runtime", e);
+            return null;
+        }
+    }
+
+    /**
+     * Method to read an index.
+     * @param is The stream to read from
+     * @return The index
+     * @throws IOException if the stream is not a valid index
+     */
+    static PersistenceUnitIndex read(InputStream is)
+    throws IOException
+    {
+        DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(is)));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION)
+        {
+            throw new IOException("Not a persistence unit index, or an unsupported version");
+        }
+        String unitName = in.readUTF();
+        String transactionType = in.readBoolean() ? in.readUTF() : null;
+        Map<String, String> properties = new TreeMap<>();
+        for (int i = in.readInt(); i > 0; i--)
+        {
+            properties.put(in.readUTF(), in.readUTF());
+        }
+        return new PersistenceUnitIndex(unitName, transactionType, properties, readStrings(in), readStrings(in));
+    }
+
+    /**
+     * Method to write this index.
+     * @param os The stream to write to
+     * @throws IOException if an error occurs writing
+     */
+    void write(OutputStream os)
+    throws IOException
+    {
+        GZIPOutputStream gzip = new GZIPOutputStream(new BufferedOutputStream(os));
+        DataOutputStream out = new DataOutputStream(gzip);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(unitName);
+        out.writeBoolean(transactionType != null);
+        if (transactionType != null)
+        {
+            out.writeUTF(transactionType);
+        }
+        out.writeInt(properties.size());
+        for (Map.Entry<String, String> entry : properties.entrySet())
+        {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+        writeStrings(out, mappingFiles);
+        writeStrings(out, classNames);
+        out.flush();
+        gzip.finish();
+        out.flush();
+    }
+
+    private static List<String> readStrings(DataInputStream in)
+    throws IOException
+    {
+        int size = in.readInt();
+        List<String> strings = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+        {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings)
+    throws IOException
+    {
+        out.writeInt(strings.size());
+        for (String str : strings)
+        {
+            out.writeUTF(str);
+        }
+    }
+
+    /**
+     * Method to resolve a persistence unit, loading the metadata of all of its classes (and so finding those only
+     * discovered by scanning), and checking that they are all enhanced.
+     * @param persistenceXml Location of the persistence.xml file
+     * @param unitName Name of the persistence unit
+     * @return The index
+     * @throws NucleusException if the persistence unit is not found, or any of its classes is not enhanced
+     */
+    public static PersistenceUnitIndex create(String persistenceXml, String unitName)
+    {
+        Map<String, Object> props = new HashMap<>();
+        props.put(PropertyNames.PROPERTY_PERSISTENCE_XML_FILENAME, persistenceXml);
+        props.put(Constants.PROPERTY_PERSISTENCE_UNIT_NAME, unitName);
+        JDOPersistenceManagerFactory pmf = new JDOPersistenceManagerFactory(props);
+        try
+        {
+            PersistenceNucleusContext nucCtx = pmf.getNucleusContext();
+            ClassLoaderResolver clr = nucCtx.getClassLoaderResolver(null);
+            PersistenceUnitMetaData pumd = MetaDataUtils.getMetaDataForPersistenceUnit(nucCtx.getPluginManager(), persistenceXml, unitName, false, true, clr);
+            if (pumd == null)
+            {
+                throw new NucleusException("Persistence unit " + unitName + " not found in " + persistenceXml);
+            }
+
+            Map<String, String> properties = new TreeMap<>();
+            pumd.getProperties().forEach((key, value) -> properties.put((String)key, (String)value));
+            List<String> mappingFiles = pumd.getMappingFiles() != null ? new ArrayList<>(new TreeSet<>(pumd.getMappingFiles())) : new ArrayList<>();
+            List<String> classNames = new ArrayList<>(new TreeSet<>(nucCtx.getMetaDataManager().getClassesWithMetaData()));
+
+            List<String> unenhanced = new ArrayList<>();
+            for (String className : classNames)
+            {
+                Class<?> cls = clr.classForName(className);
+                if (!cls.isInterface() && !Persistable.class.isAssignableFrom(cls))
+                {
+                    unenhanced.add(className);
+                }
+            }
+            if (!unenhanced.isEmpty())
+            {
+                throw new NucleusException("Persistence unit " + unitName + " has classes that are not enhanced : " + unenhanced);
+            }
+
+            String txType = pumd.getTransactionType() != null ? pumd.getTransactionType().toString() : null;
+            return new PersistenceUnitIndex(unitName, txType, properties, mappingFiles, classNames);
+        }
+        finally
+        {
+            pmf.close();
+        }
+    }
+
+    /**
+     * Entry point for the build, writing the index of a persistence unit under an output directory.
+     * The classes of the persistence unit must be on the classpath.
+     * @param args persistence.xml location, persistence unit name, output directory
+     * @throws IOException if an error occurs writing the index
+     */
+    public static void main(String[] args)
+    throws IOException
+    {
+        if (args.length != 3)
+        {
+            System.err.println("Usage: PersistenceUnitIndex {persistence.xml} {unit-name} {output-dir}");
+            System.exit(1);
+        }
+
+        String persistenceXml = new File(args[0]).toURI().toString();
+        PersistenceUnitIndex index = create(persistenceXml, args[1]);
+        File file = new File(args[2], RESOURCE_NAME);
+        file.getParentFile().mkdirs();
+        try (OutputStream os = new FileOutputStream(file))
+        {
+            index.write(os);
+        }
+        System.out.println("Written index of persistence unit " + args[1] + " with " + index.classNames.size() + " classes to " + file);
+    }
+}
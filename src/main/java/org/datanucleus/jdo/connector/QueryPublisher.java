@@ -0,0 +1,247 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jdo.JDOUserException;
+import javax.jdo.Query;
+
+/**
+ * Publisher of the results of a query of a connection handle, for a single subscriber. The query is only executed on the
+ * first request of the subscriber, and results are then read from the cursor only as requested, using a
+ * {@link StreamingQueryIterator} so that they are not retained. Results are emitted on the thread calling
+ * {@link Flow.Subscription#request(long)}, so no thread is held while the subscriber has no demand. On completion, error or
+ * cancellation the query is closed and, if requested, the connection handle is closed, releasing its ManagedConnection.
+ * Results can only be published while the handle stays associated with the ManagedConnection it had when the publisher was
+ * created. Once the container reclaims the ManagedConnection (such as at the end of the request or transaction) the
+ * subscriber is signalled an error, and neither the query nor the handle are closed, the container having cleaned them up.
+ * @param <T> Type of the results
+ */
+class QueryPublisher<T> implements Flow.Publisher<T>
+{
+    private final PersistenceManagerImpl handle;
+
+    /** ManagedConnection of the handle when the publisher was created. */
+    private final ManagedConnectionImpl mc;
+
+    private final Query<?> query;
+
+    private final int fetchSize;
+
+    private final Object[] parameters;
+
+    private final boolean closeHandle;
+
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    /**
+     * Constructor.
+     * @param handle The connection handle of the query
+     * @param query The query
+     * @param fetchSize JDBC fetch size, or 0 for the default
+     * @param closeHandle Whether to close the handle when the results have been published or the subscription cancelled
+     * @param parameters The query parameters
+     */
+    QueryPublisher(PersistenceManagerImpl handle, Query<?> query, int fetchSize, boolean closeHandle, Object... parameters)
+    {
+        this.handle = handle;
+        this.mc = handle.mc;
+        this.query = query;
+        this.fetchSize = fetchSize;
+        this.closeHandle = closeHandle;
+        this.parameters = parameters;
+    }
+
+    public void subscribe(Flow.Subscriber<? super T> subscriber)
+    {
+        if (!subscribed.compareAndSet(false, true))
+        {
+            subscriber.onSubscribe(new Flow.Subscription()
+            {
+                public void request(long n)
+                {
+                }
+
+                public void cancel()
+                {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Query results can only be published to one subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new QuerySubscription(subscriber));
+    }
+
+    /**
+     * Accessor for whether the handle is still open and associated with the ManagedConnection it had when created.
+     * @return Whether the query can still be used
+     */
+    private boolean isAssociated()
+    {
+        return !handle.isClosed() && handle.mc == mc;
+    }
+
+    /**
+     * Subscription emitting results as requested. Emission is serialised, whatever the thread requesting or cancelling,
+     * the thread finding no emission in progress emitting for the others.
+     */
+    private class QuerySubscription implements Flow.Subscription
+    {
+        private final Flow.Subscriber<? super T> subscriber;
+
+        private final AtomicLong demand = new AtomicLong();
+
+        /** Number of requests/cancellations not yet processed by the emitting thread. */
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private volatile boolean cancelled;
+
+        /** Error for an invalid request, to signal when cancelling. */
+        private volatile IllegalArgumentException invalidRequest;
+
+        /** Whether the subscription has terminated. Only accessed by the emitting thread. */
+        private boolean terminated;
+
+        /** Results, once the query has been executed. Only accessed by the emitting thread. */
+        private StreamingQueryIterator<T> results;
+
+        QuerySubscription(Flow.Subscriber<? super T> subscriber)
+        {
+            this.subscriber = subscriber;
+        }
+
+        public void request(long n)
+        {
+            if (n <= 0)
+            {
+                invalidRequest = new IllegalArgumentException("Number of results requested must be positive : " + n);
+                cancelled = true;
+                drain();
+                return;
+            }
+            demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            drain();
+        }
+
+        public void cancel()
+        {
+            cancelled = true;
+            drain();
+        }
+
+        private void drain()
+        {
+            if (pending.getAndIncrement() != 0)
+            {
+                return;
+            }
+            int missed = 1;
+            do
+            {
+                if (!terminated)
+                {
+                    emit();
+                }
+                missed = pending.addAndGet(-missed);
+            }
+            while (missed != 0);
+        }
+
+        private void emit()
+        {
+            try
+            {
+                while (!cancelled && demand.get() > 0)
+                {
+                    if (!isAssociated())
+                    {
+                        throw new JDOUserException("Connection handle was closed or reclaimed by the container before its query results were published");
+                    }
+                    if (results == null)
+                    {
+                        results = new StreamingQueryIterator<>(query.getPersistenceManager(), query, fetchSize, parameters);
+                    }
+                    if (!results.hasNext())
+                    {
+                        release();
+                        subscriber.onComplete();
+                        return;
+                    }
+                    T result = results.next();
+                    if (demand.get() != Long.MAX_VALUE)
+                    {
+                        demand.decrementAndGet();
+                    }
+                    subscriber.onNext(result);
+                }
+                if (cancelled)
+                {
+                    release();
+                    if (invalidRequest != null)
+                    {
+                        subscriber.onError(invalidRequest);
+                    }
+                }
+            }
+            catch (RuntimeException e)
+            {
+                release();
+                subscriber.onError(e);
+            }
+        }
+
+        private void release()
+        {
+            terminated = true;
+            if (!isAssociated())
+            {
+                // Query and handle already cleaned up with the ManagedConnection, or closed by the application
+                return;
+            }
+            try
+            {
+                if (results != null)
+                {
+                    results.close();
+                }
+                else
+                {
+                    query.closeAll();
+                }
+            }
+            finally
+            {
+                if (closeHandle)
+                {
+                    try
+                    {
+                        handle.close();
+                    }
+                    catch (JDOUserException e)
+                    {
+                        PersistenceManagerImpl.LOGGER.warn("Exception closing connection handle after publishing query results", e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,447 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.jdo.JDOQLTypedQuery;
+import javax.jdo.Query;
+
+import org.datanucleus.store.query.QueryResult;
+
+/**
+ * Execution latency and result size of the queries run through connection handles, in histograms per query shape.
+ * The shape of a query is its text with literals replaced by "?" and whitespace collapsed, so that executions of the same
+ * query with different values are recorded together, and is only computed again when the query is changed. Queries are
+ * instrumented by wrapping them in a proxy (see {@link #wrap(Query, ManagedConnectionImpl)}), which records each call of
+ * an execute method, and also reports slow executions to the {@link SlowOperationDetector}. Since counting lazily loaded
+ * results could load them, their size is recorded when they have been iterated through, or as the number of results read
+ * when they are closed.
+ */
+public class QueryStatistics
+{
+    /** Maximum number of query shapes tracked. Executions of further shapes are recorded under {@link #OTHER_SHAPES}. */
+    static final int MAX_SHAPES = 500;
+
+    static final String OTHER_SHAPES = "<other queries>";
+
+    private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^'\\\\]|\\\\.)*'|\"(?:[^\"\\\\]|\\\\.)*\"");
+
+    private static final Pattern NUMERIC_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?[dDfFlL]?\\b");
+
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final ManagedConnectionFactoryImpl mcf;
+
+    private final Map<String, Shape> shapes = new ConcurrentHashMap<>();
+
+    QueryStatistics(ManagedConnectionFactoryImpl mcf)
+    {
+        this.mcf = mcf;
+    }
+
+    /** Latency and result size histograms of one query shape. */
+    static class Shape
+    {
+        final String query;
+        final Histogram latency = new Histogram();
+        final Histogram resultSize = new Histogram();
+
+        Shape(String query)
+        {
+            this.query = query;
+        }
+
+        String describe()
+        {
+            return "count=" + latency.getCount() +
+                " mean=" + millis(latency.getMean()) + "ms p50=" + millis(latency.getValueAtPercentile(50)) +
+                "ms p90=" + millis(latency.getValueAtPercentile(90)) + "ms p99=" + millis(latency.getValueAtPercentile(99)) +
+                "ms max=" + millis(latency.getMax()) + "ms rows(mean=" + resultSize.getMean() +
+                " p99=" + resultSize.getValueAtPercentile(99) + " max=" + resultSize.getMax() + ") : " + query;
+        }
+
+        private static String millis(long nanos)
+        {
+            return String.format("%.3f", nanos / (double)TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * Accessor for the histograms of the shape of a query.
+     * @param queryText Text of the query (as given by its toString)
+     * @return The shape
+     */
+    Shape getShape(String queryText)
+    {
+        String key = normalise(queryText);
+        Shape shape = shapes.get(key);
+        if (shape == null)
+        {
+            shape = shapes.size() < MAX_SHAPES ? shapes.computeIfAbsent(key, Shape::new) : shapes.computeIfAbsent(OTHER_SHAPES, Shape::new);
+        }
+        return shape;
+    }
+
+    /**
+     * Method to normalise the text of a query to its shape, replacing literals by "?" and collapsing whitespace.
+     * @param queryText Text of the query
+     * @return The query shape
+     */
+    static String normalise(String queryText)
+    {
+        if (queryText == null)
+        {
+            return "<unknown query>";
+        }
+        String shape = STRING_LITERAL.matcher(queryText).replaceAll("?");
+        shape = NUMERIC_LITERAL.matcher(shape).replaceAll("?");
+        return WHITESPACE.matcher(shape).replaceAll(" ").trim();
+    }
+
+    int getShapeCount()
+    {
+        return shapes.size();
+    }
+
+    /**
+     * Accessor for a description of the histograms of each query shape, slowest (by p99 latency) first.
+     * @return The descriptions
+     */
+    String[] report()
+    {
+        List<Shape> sorted = new ArrayList<>(shapes.values());
+        sorted.sort((s1, s2) -> Long.compare(s2.latency.getValueAtPercentile(99), s1.latency.getValueAtPercentile(99)));
+        String[] report = new String[sorted.size()];
+        for (int i = 0; i < report.length; i++)
+        {
+            report[i] = sorted.get(i).describe();
+        }
+        return report;
+    }
+
+    /**
+     * Method to log the histograms of all query shapes, slowest first.
+     */
+    void dump()
+    {
+        if (PersistenceManagerImpl.LOGGER.isInfoEnabled() && !shapes.isEmpty())
+        {
+            StringBuilder str = new StringBuilder("Query statistics (" + shapes.size() + " query shapes)");
+            for (String line : report())
+            {
+                str.append("\n  ").append(line);
+            }
+            PersistenceManagerImpl.LOGGER.info(str.toString());
+        }
+    }
+
+    void reset()
+    {
+        shapes.clear();
+    }
+
+    /**
+     * Accessor for whether queries need wrapping, to record their statistics or detect slow executions.
+     * @return Whether to wrap queries
+     */
+    boolean isWrapping()
+    {
+        return mcf.queryStatistics || mcf.slowOperations.isEnabled(SlowOperationDetector.Operation.QUERY);
+    }
+
+    /**
+     * Method to wrap a query so that its executions are recorded here.
+     * @param query The query (may be null)
+     * @param mc The ManagedConnection that the query is for
+     * @return The wrapped query
+     */
+    Query<?> wrap(Query<?> query, ManagedConnectionImpl mc)
+    {
+        return query != null ? (Query<?>)Proxy.newProxyInstance(Query.class.getClassLoader(),
+            new Class<?>[] {Query.class}, new QueryHandler(query, mc)) : null;
+    }
+
+    /**
+     * Method to wrap a typed query so that its executions are recorded here.
+     * @param query The query (may be null)
+     * @param mc The ManagedConnection that the query is for
+     * @return The wrapped query
+     */
+    @SuppressWarnings("unchecked") // The proxy implements JDOQLTypedQuery for the same type as the query
+    <T> JDOQLTypedQuery<T> wrap(JDOQLTypedQuery<T> query, ManagedConnectionImpl mc)
+    {
+        return query != null ? (JDOQLTypedQuery<T>)Proxy.newProxyInstance(JDOQLTypedQuery.class.getClassLoader(),
+            new Class<?>[] {JDOQLTypedQuery.class}, new QueryHandler(query, mc)) : null;
+    }
+
+    /**
+     * Convenience method to give the underlying query when passed a query wrapped by {@link #wrap(Query, ManagedConnectionImpl)},
+     * for passing to DataNucleus.
+     * @param obj The object
+     * @return The underlying query, or the object itself when not a wrapped query
+     */
+    static Object unwrap(Object obj)
+    {
+        if (obj != null && Proxy.isProxyClass(obj.getClass()))
+        {
+            InvocationHandler handler = Proxy.getInvocationHandler(obj);
+            if (handler instanceof QueryHandler)
+            {
+                return ((QueryHandler)handler).query;
+            }
+            else if (handler instanceof ResultHandler)
+            {
+                return ((ResultHandler)handler).result;
+            }
+        }
+        return obj;
+    }
+
+    /**
+     * Handler of wrapped queries, timing the execute methods and keeping the proxy in place of the query
+     * for methods returning the query itself (the fluent API).
+     */
+    private class QueryHandler implements InvocationHandler
+    {
+        final Object query;
+
+        final ManagedConnectionImpl mc;
+
+        /** Shape of the query, computed on execution when not known or the query has changed since. */
+        Shape shape;
+
+        /** Lazily loaded results of executions, whose size is recorded (if not yet) when the query closes them. */
+        final List<ResultHandler> openResults = new ArrayList<>(1);
+
+        QueryHandler(Object query, ManagedConnectionImpl mc)
+        {
+            this.query = query;
+            this.mc = mc;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class)
+            {
+                if (name.equals("equals"))
+                {
+                    return proxy == args[0] || query.equals(unwrap(args[0]));
+                }
+                return method.invoke(query, args);
+            }
+
+            boolean execution = name.startsWith("execute") || name.equals("deletePersistentAll");
+            if (name.equals("closeAll"))
+            {
+                openResults.forEach(ResultHandler::closed);
+                openResults.clear();
+            }
+            else if (name.equals("close") && args != null && args.length == 1)
+            {
+                Object closing = args[0] != null && Proxy.isProxyClass(args[0].getClass()) ? Proxy.getInvocationHandler(args[0]) : null;
+                if (closing instanceof ResultHandler && openResults.remove(closing))
+                {
+                    ((ResultHandler)closing).closed();
+                }
+                args = new Object[] {unwrap(args[0])};
+            }
+            else if (!execution && !name.startsWith("get") && !name.startsWith("is"))
+            {
+                shape = null; // Possibly changed
+            }
+
+            long start = execution ? System.nanoTime() : 0;
+            Object result;
+            try
+            {
+                result = method.invoke(query, args);
+            }
+            catch (InvocationTargetException e)
+            {
+                throw e.getCause();
+            }
+            if (execution)
+            {
+                long nanos = System.nanoTime() - start;
+                mcf.slowOperations.check(SlowOperationDetector.Operation.QUERY, nanos, mc, query);
+                if (!mcf.queryStatistics)
+                {
+                    return result == query ? proxy : result;
+                }
+                if (shape == null)
+                {
+                    shape = getShape(query.toString());
+                }
+                shape.latency.record(nanos);
+                if (result instanceof QueryResult)
+                {
+                    // Lazily loaded result, whose size() could load all results, so sized as read
+                    ResultHandler handler = new ResultHandler(result, shape);
+                    openResults.add(handler);
+                    return Proxy.newProxyInstance(QueryResult.class.getClassLoader(),
+                        result instanceof List ? new Class<?>[] {QueryResult.class, List.class} : new Class<?>[] {QueryResult.class}, handler);
+                }
+                else if (result instanceof Collection)
+                {
+                    shape.resultSize.record(((Collection)result).size());
+                }
+                else if (result instanceof Long && name.equals("deletePersistentAll"))
+                {
+                    shape.resultSize.record((Long)result);
+                }
+                else
+                {
+                    shape.resultSize.record(result != null ? 1 : 0);
+                }
+            }
+            return result == query ? proxy : result;
+        }
+    }
+
+    /**
+     * Handler of lazily loaded query results, recording their size once known without loading more results than
+     * requested. This is when size() is called, an iterator reaches the end, or the results are closed, at which point the
+     * number of results read is recorded (unless read in a way that is not counted, such as a stream).
+     */
+    private static class ResultHandler implements InvocationHandler
+    {
+        final Object result;
+
+        final Shape shape;
+
+        /** Number of results read, or -1 when not known. */
+        long read = 0;
+
+        boolean recorded = false;
+
+        ResultHandler(Object result, Shape shape)
+        {
+            this.result = result;
+            this.shape = shape;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class && name.equals("equals"))
+            {
+                return proxy == args[0] || result.equals(unwrap(args[0]));
+            }
+
+            Object value;
+            try
+            {
+                value = method.invoke(result, args);
+            }
+            catch (InvocationTargetException e)
+            {
+                throw e.getCause();
+            }
+            switch (name)
+            {
+                case "iterator":
+                    return new CountingIterator((Iterator)value);
+                case "size":
+                    recordSize((Integer)value);
+                    break;
+                case "toArray":
+                    recordSize(((Object[])value).length);
+                    break;
+                case "get":
+                    read = read < 0 ? read : Math.max(read, (Integer)args[0] + 1);
+                    break;
+                case "close":
+                    closed();
+                    break;
+                case "isEmpty":
+                case "contains":
+                case "containsAll":
+                case "hashCode":
+                case "toString":
+                case "disconnect":
+                    break;
+                default:
+                    read = -1;
+            }
+            return value;
+        }
+
+        void closed()
+        {
+            recordSize(read);
+        }
+
+        void recordSize(long size)
+        {
+            if (!recorded && size >= 0)
+            {
+                recorded = true;
+                shape.resultSize.record(size);
+            }
+        }
+
+        /** Iterator counting the results read, and recording their size when reaching the end. */
+        private class CountingIterator implements Iterator<Object>
+        {
+            final Iterator<?> iter;
+
+            long count = 0;
+
+            CountingIterator(Iterator<?> iter)
+            {
+                this.iter = iter;
+            }
+
+            public boolean hasNext()
+            {
+                boolean hasNext = iter.hasNext();
+                if (!hasNext)
+                {
+                    recordSize(count);
+                }
+                return hasNext;
+            }
+
+            public Object next()
+            {
+                Object next = iter.next();
+                count++;
+                read = read < 0 ? read : Math.max(read, count);
+                return next;
+            }
+
+            public void remove()
+            {
+                iter.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import javax.resource.cci.ResourceAdapterMetaData;
+
+/**
+ * MetaData for the resource adapter, as returned by {@link PersistenceManagerFactoryImpl#getMetaData()}.
+ * Besides the adapter details it gives a live view of the usage of its connection factory.
+ */
+public class ResourceAdapterMetaDataImpl implements ResourceAdapterMetaData
+{
+    private final ManagedConnectionFactoryImpl mcf;
+
+    ResourceAdapterMetaDataImpl(ManagedConnectionFactoryImpl mcf)
+    {
+        this.mcf = mcf;
+    }
+
+    public String getAdapterVersion()
+    {
+        Package pkg = getClass().getPackage();
+        return pkg != null ? pkg.getImplementationVersion() : null;
+    }
+
+    public String getAdapterVendorName()
+    {
+        return "DataNucleus";
+    }
+
+    public String getAdapterName()
+    {
+        return "DataNucleus Connector";
+    }
+
+    public String getAdapterShortDescription()
+    {
+        return "JCA adapter for DataNucleus JDO";
+    }
+
+    public String getSpecVersion()
+    {
+        return "1.0";
+    }
+
+    public String[] getInteractionSpecsSupported()
+    {
+        return new String[0];
+    }
+
+    public boolean supportsExecuteWithInputAndOutputRecord()
+    {
+        return false;
+    }
+
+    public boolean supportsExecuteWithInputRecordOnly()
+    {
+        return false;
+    }
+
+    public boolean supportsLocalTransactionDemarcation()
+    {
+        return true;
+    }
+
+    /**
+     * Accessor for the number of ManagedConnections not yet destroyed.
+     * @return Number of live connections
+     */
+    public int getLiveConnections()
+    {
+        return mcf.getStatistics().getLiveConnections();
+    }
+
+    /**
+     * Accessor for the number of handles currently associated with the live ManagedConnections.
+     * @return Number of handles
+     */
+    public int getLiveHandles()
+    {
+        return mcf.getStatistics().getLiveHandles();
+    }
+
+    /**
+     * Accessor for the number of operations invoked through handles of the connection factory.
+     * @return Number of operations
+     */
+    public long getOperationsServed()
+    {
+        return mcf.getStatistics().getOperationsServed();
+    }
+
+    /**
+     * Accessor for the number of transactions committed on connections of the connection factory.
+     * @return Number of commits
+     */
+    public long getTransactionsCommitted()
+    {
+        return mcf.getStatistics().getTransactionsCommitted();
+    }
+
+    /**
+     * Accessor for the number of transactions rolled back on connections of the connection factory.
+     * @return Number of rollbacks
+     */
+    public long getTransactionsRolledBack()
+    {
+        return mcf.getStatistics().getTransactionsRolledBack();
+    }
+}
@@ -0,0 +1,248 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.Configuration;
+import org.datanucleus.PersistenceNucleusContext;
+import org.datanucleus.PropertyNames;
+import org.datanucleus.api.jdo.JDOPersistenceManagerFactory;
+import org.datanucleus.api.jdo.metadata.JDOXmlMetaDataHelper;
+import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.MetaDataManager;
+import org.datanucleus.store.StoreManager;
+
+/**
+ * Fingerprint of the schema a PMF maps to, stored in a local file, so that schema auto-creation and validation only
+ * run at startup when the schema may have changed. The fingerprint covers the metadata of all persistence unit classes,
+ * the persistence properties, the DataNucleus versions and the configured schema version.
+ * When the fingerprint matches the file, auto-create and validation are switched off for the PMF. Otherwise they are
+ * left as configured, and all classes are managed during bootstrap so that the check happens there, after which the
+ * file is updated.
+ */
+class SchemaFingerprint
+{
+    private static final String[] SCHEMA_CHECK_PROPERTIES =
+    {
+        PropertyNames.PROPERTY_SCHEMA_AUTOCREATE_ALL, PropertyNames.PROPERTY_SCHEMA_AUTOCREATE_TABLES,
+        PropertyNames.PROPERTY_SCHEMA_AUTOCREATE_COLUMNS, PropertyNames.PROPERTY_SCHEMA_AUTOCREATE_CONSTRAINTS,
+        PropertyNames.PROPERTY_SCHEMA_VALIDATE_ALL, PropertyNames.PROPERTY_SCHEMA_VALIDATE_TABLES,
+        PropertyNames.PROPERTY_SCHEMA_VALIDATE_COLUMNS, PropertyNames.PROPERTY_SCHEMA_VALIDATE_CONSTRAINTS
+    };
+
+    private static final String KEY_FINGERPRINT = "fingerprint";
+
+    private static final String KEY_DATASTORE = "datastore";
+
+    private final File file;
+
+    private final String schemaVersion;
+
+    private String fingerprint;
+
+    private boolean changed;
+
+    /**
+     * Constructor.
+     * @param filename Name of the file storing the fingerprint
+     * @param schemaVersion Version of the datastore schema, as maintained by the application (or null)
+     */
+    SchemaFingerprint(String filename, String schemaVersion)
+    {
+        this.file = new File(filename);
+        this.schemaVersion = schemaVersion;
+    }
+
+    /**
+     * Method to be called before the PMF is frozen. Computes the fingerprint and, when it matches the stored one,
+     * switches off schema auto-creation and validation.
+     * @param pmf The PMF, not yet frozen
+     * @return The schema properties as configured before being switched off (empty if left as configured), since the
+     *     fingerprint only covers the datastore of this PMF
+     */
+    Map<String, Object> beforeFreeze(JDOPersistenceManagerFactory pmf)
+    {
+        Configuration conf = pmf.getNucleusContext().getConfiguration();
+        boolean schemaChecks = false;
+        for (String propName : SCHEMA_CHECK_PROPERTIES)
+        {
+            schemaChecks |= conf.getBooleanProperty(propName);
+        }
+        if (!schemaChecks)
+        {
+            return Collections.emptyMap();
+        }
+
+        fingerprint = computeFingerprint(pmf.getNucleusContext());
+        Properties stored = readFile();
+        changed = !fingerprint.equals(stored.getProperty(KEY_FINGERPRINT));
+        if (changed)
+        {
+            PersistenceManagerImpl.LOGGER.info("Schema fingerprint differs from " + file + ", so the schema will be checked during startup");
+            return Collections.emptyMap();
+        }
+
+        PersistenceManagerImpl.LOGGER.info("Schema fingerprint matches " + file + ", so schema auto-create and validation are skipped");
+        Map<String, Object> configured = new HashMap<>();
+        for (String propName : SCHEMA_CHECK_PROPERTIES)
+        {
+            Object value = conf.getProperty(propName);
+            if (value != null)
+            {
+                configured.put(propName, value);
+            }
+            conf.setProperty(propName, "false");
+        }
+        return configured;
+    }
+
+    /**
+     * Method to be called after the PMF is frozen. When the fingerprint changed, manages all classes so the schema is
+     * checked now, and stores the new fingerprint. When unchanged, checks that the datastore is still the same product version,
+     * otherwise invalidating the stored fingerprint so that the next startup checks the schema.
+     * @param pmf The PMF, frozen
+     */
+    void afterFreeze(JDOPersistenceManagerFactory pmf)
+    {
+        if (fingerprint == null)
+        {
+            return;
+        }
+
+        PersistenceNucleusContext nucCtx = pmf.getNucleusContext();
+        String datastore = getDatastoreVersion(nucCtx.getStoreManager());
+        if (changed)
+        {
+            ClassLoaderResolver clr = nucCtx.getClassLoaderResolver(null);
+            nucCtx.getStoreManager().manageClasses(clr, nucCtx.getMetaDataManager().getClassesWithMetaData().toArray(new String[0]));
+
+            Properties props = new Properties();
+            props.setProperty(KEY_FINGERPRINT, fingerprint);
+            props.setProperty(KEY_DATASTORE, datastore);
+            writeFile(props);
+        }
+        else if (!datastore.equals(readFile().getProperty(KEY_DATASTORE)))
+        {
+            PersistenceManagerImpl.LOGGER.warn("Datastore is now " + datastore + " so the schema was not checked against it. It will be checked on the next startup");
+            file.delete();
+        }
+    }
+
+    private String computeFingerprint(PersistenceNucleusContext nucCtx)
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new NucleusException("Unable to compute schema fingerprint", e);
+        }
+
+        Map<String, String> props = new TreeMap<>();
+        for (Map.Entry<String, Object> entry : nucCtx.getConfiguration().getPersistenceProperties().entrySet())
+        {
+            if (entry.getValue() instanceof String)
+            {
+                props.put(entry.getKey(), (String)entry.getValue());
+            }
+        }
+        props.put("datanucleus.version", String.valueOf(nucCtx.getPluginManager().getVersionForBundle("org.datanucleus")));
+        props.put("datanucleus.store.version", String.valueOf(nucCtx.getPluginManager().getVersionForBundle("org.datanucleus.store.rdbms")));
+        props.put("schema.version", String.valueOf(schemaVersion));
+        update(digest, props.toString());
+
+        MetaDataManager mmgr = nucCtx.getMetaDataManager();
+        ClassLoaderResolver clr = nucCtx.getClassLoaderResolver(null);
+        JDOXmlMetaDataHelper xmlHelper = new JDOXmlMetaDataHelper();
+        for (String className : new TreeSet<>(mmgr.getClassesWithMetaData()))
+        {
+            AbstractClassMetaData cmd = mmgr.getMetaDataForClass(className, clr);
+            update(digest, cmd != null ? xmlHelper.getXMLForMetaData(cmd, "", "") : className);
+        }
+
+        StringBuilder str = new StringBuilder();
+        for (byte b : digest.digest())
+        {
+            str.append(String.format("%02x", b));
+        }
+        return str.toString();
+    }
+
+    private static void update(MessageDigest digest, String str)
+    {
+        digest.update(str.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte)0);
+    }
+
+    private static String getDatastoreVersion(StoreManager storeMgr)
+    {
+        return ManagedConnectionMetaDataImpl.getDatastoreProductName(storeMgr) + " " + ManagedConnectionMetaDataImpl.getDatastoreProductVersion(storeMgr);
+    }
+
+    private Properties readFile()
+    {
+        Properties props = new Properties();
+        if (file.exists())
+        {
+            try (InputStream is = new FileInputStream(file))
+            {
+                props.load(is);
+            }
+            catch (IOException e)
+            {
+                PersistenceManagerImpl.LOGGER.warn("Unable to read schema fingerprint file " + file, e);
+            }
+        }
+        return props;
+    }
+
+    private void writeFile(Properties props)
+    {
+        if (file.getParentFile() != null)
+        {
+            file.getParentFile().mkdirs();
+        }
+        try (OutputStream os = new FileOutputStream(file))
+        {
+            props.store(os, "DataNucleus JCA schema fingerprint");
+        }
+        catch (IOException e)
+        {
+            PersistenceManagerImpl.LOGGER.warn("Unable to write schema fingerprint file " + file + ", so the schema will be checked again on the next startup", e);
+        }
+    }
+}
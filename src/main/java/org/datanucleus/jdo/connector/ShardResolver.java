@@ -0,0 +1,34 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+/**
+ * Function deciding which shard holds an object, for a sharded {@link ManagedConnectionFactoryImpl}.
+ * Implementations must be thread-safe and have a public no-arg constructor, and must always return the same shard
+ * for the same identity.
+ */
+public interface ShardResolver
+{
+    /**
+     * Accessor for the shard holding the object with the specified identity.
+     * @param id The identity (datastore, single-field or user-defined application identity)
+     * @param numberOfShards Number of shards
+     * @return The shard number, from 0 to numberOfShards-1
+     */
+    int getShard(Object id, int numberOfShards);
+}
@@ -0,0 +1,242 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jdo.Transaction;
+import javax.transaction.xa.Xid;
+
+import org.datanucleus.api.jdo.JDOPersistenceManager;
+import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.util.StringUtils;
+
+/**
+ * Detector of operations on connection handles that take longer than a configured threshold. Slow operations are
+ * logged at WARN level with their duration and transaction context, and with the call stack of one in every
+ * {@link #setStackSampling(int) so many} of them. The handle takes the start time before the operation and calls
+ * {@link #completed} after it, so the cost when the operation isn't slow is a pair of System.nanoTime calls.
+ */
+class SlowOperationDetector
+{
+    /** Operations that can be given a threshold. */
+    enum Operation
+    {
+        FLUSH("flush"),
+        QUERY("query"),
+        GET_OBJECT_BY_ID("getObjectById"),
+        DETACH_COPY("detachCopy"),
+        MAKE_PERSISTENT_ALL("makePersistentAll");
+
+        final String name;
+
+        Operation(String name)
+        {
+            this.name = name;
+        }
+    }
+
+    /** Threshold of each operation in nanoseconds, indexed by ordinal. Long.MAX_VALUE when not detecting. */
+    private final long[] thresholds = new long[Operation.values().length];
+
+    private volatile int stackSampling = 10;
+
+    private final AtomicLong slowOperations = new AtomicLong();
+
+    SlowOperationDetector()
+    {
+        Arrays.fill(thresholds, Long.MAX_VALUE);
+    }
+
+    /**
+     * Method to set the thresholds, from a comma-separated list of "operation=milliseconds", where the operation is one of
+     * flush, query, getObjectById, detachCopy and makePersistentAll, or "*" for all operations not listed.
+     * @param spec The thresholds (null or empty for no detection)
+     * @throws NucleusException if the thresholds are invalid
+     */
+    synchronized void setThresholds(String spec)
+    {
+        long[] values = new long[thresholds.length];
+        Arrays.fill(values, Long.MAX_VALUE);
+        if (!StringUtils.isWhitespace(spec))
+        {
+            long defaultValue = Long.MAX_VALUE;
+            boolean[] specified = new boolean[values.length];
+            for (String entry : spec.split(","))
+            {
+                int sep = entry.indexOf('=');
+                if (sep < 0)
+                {
+                    throw new NucleusException("Invalid slow operation threshold \"" + entry + "\" : must be operation=milliseconds");
+                }
+                String opName = entry.substring(0, sep).trim();
+                long nanos;
+                try
+                {
+                    nanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(entry.substring(sep + 1).trim()));
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new NucleusException("Invalid slow operation threshold \"" + entry + "\" : must be operation=milliseconds");
+                }
+                if (opName.equals("*"))
+                {
+                    defaultValue = nanos;
+                    continue;
+                }
+                Operation op = getOperation(opName);
+                values[op.ordinal()] = nanos;
+                specified[op.ordinal()] = true;
+            }
+            for (int i = 0; i < values.length; i++)
+            {
+                if (!specified[i])
+                {
+                    values[i] = defaultValue;
+                }
+            }
+        }
+        System.arraycopy(values, 0, thresholds, 0, values.length);
+    }
+
+    private static Operation getOperation(String name)
+    {
+        for (Operation op : Operation.values())
+        {
+            if (op.name.equalsIgnoreCase(name))
+            {
+                return op;
+            }
+        }
+        throw new NucleusException("Unknown slow operation \"" + name + "\" : must be one of flush, query, getObjectById, detachCopy, makePersistentAll or *");
+    }
+
+    /**
+     * Mutator for how often the call stack of slow operations is logged.
+     * @param sampling Log the call stack of one in this number of slow operations (0 for never)
+     */
+    void setStackSampling(int sampling)
+    {
+        this.stackSampling = sampling;
+    }
+
+    /**
+     * Accessor for whether the specified operation has a threshold.
+     * @param op The operation
+     * @return Whether slow executions of it are detected
+     */
+    boolean isEnabled(Operation op)
+    {
+        return thresholds[op.ordinal()] != Long.MAX_VALUE;
+    }
+
+    /**
+     * Method to call on completion of an operation, reporting it if it took longer than its threshold.
+     * @param op The operation
+     * @param startNanos System.nanoTime() at the start of the operation
+     * @param mc The ManagedConnection that the operation was on
+     * @param detail Detail of the operation, such as the identity or query (may be null). Only converted to a String when slow
+     */
+    void completed(Operation op, long startNanos, ManagedConnectionImpl mc, Object detail)
+    {
+        check(op, System.nanoTime() - startNanos, mc, detail);
+    }
+
+    /**
+     * Method to call on completion of an operation on a number of objects, reporting it if it took longer than its threshold.
+     * The detail is only built from the count and unit when slow, so that nothing is allocated otherwise.
+     * @param op The operation
+     * @param startNanos System.nanoTime() at the start of the operation
+     * @param mc The ManagedConnection that the operation was on
+     * @param count Number of objects of the operation
+     * @param unit What the count is of, such as "objects"
+     */
+    void completed(Operation op, long startNanos, ManagedConnectionImpl mc, long count, String unit)
+    {
+        long nanos = System.nanoTime() - startNanos;
+        if (nanos > thresholds[op.ordinal()])
+        {
+            report(op, nanos, mc, count + " " + unit);
+        }
+    }
+
+    /**
+     * Method to report an operation if it took longer than its threshold, when its duration is already known.
+     * @param op The operation
+     * @param nanos Duration of the operation in nanoseconds
+     * @param mc The ManagedConnection that the operation was on
+     * @param detail Detail of the operation (may be null). Only converted to a String when slow
+     */
+    void check(Operation op, long nanos, ManagedConnectionImpl mc, Object detail)
+    {
+        if (nanos > thresholds[op.ordinal()])
+        {
+            report(op, nanos, mc, detail);
+        }
+    }
+
+    private void report(Operation op, long nanos, ManagedConnectionImpl mc, Object detail)
+    {
+        String msg = "Slow " + op.name + " took " + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms (threshold " +
+            TimeUnit.NANOSECONDS.toMillis(thresholds[op.ordinal()]) + "ms)" + (detail != null ? " : " + detail : "") +
+            " [" + getTransactionContext(mc) + "]";
+        int sampling = stackSampling;
+        if (sampling > 0 && slowOperations.getAndIncrement() % sampling == 0)
+        {
+            PersistenceManagerImpl.LOGGER.warn(msg, new Throwable("Call stack of slow " + op.name));
+        }
+        else
+        {
+            PersistenceManagerImpl.LOGGER.warn(msg);
+        }
+    }
+
+    /**
+     * Convenience method to describe the transaction context of a ManagedConnection.
+     * @param mc The ManagedConnection
+     * @return The description
+     */
+    static String getTransactionContext(ManagedConnectionImpl mc)
+    {
+        if (mc == null)
+        {
+            return "no connection";
+        }
+        StringBuilder str = new StringBuilder(ConnectorEvents.identity(mc));
+        JDOPersistenceManager pm = mc.getCurrentPersistenceManager();
+        Transaction tx = pm != null && !pm.isClosed() ? pm.currentTransaction() : null;
+        str.append(tx != null && tx.isActive() ? (tx.getOptimistic() ? " optimistic tx" : " datastore tx") : " no active tx");
+        List<Xid> xids = mc.getActiveXids();
+        if (!xids.isEmpty())
+        {
+            str.append(" xids=").append(xids);
+        }
+        if (mc.isReadOnly())
+        {
+            str.append(" readOnly");
+        }
+        if (mc.getTenantId() != null)
+        {
+            str.append(" tenant=").append(mc.getTenantId());
+        }
+        return str.toString();
+    }
+}
@@ -0,0 +1,152 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import java.lang.ref.Cleaner;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+import javax.jdo.Query;
+
+/**
+ * Iterator over the results of a query that keeps memory use constant whatever the number of results. The query is
+ * executed with the provided JDBC fetch size and without a result cache, and each persistent result is evicted once the
+ * iterator has moved past it, so that neither the query result nor the transaction holds on to it. Results changed by
+ * the caller are not evicted. The query is closed when the iteration ends, or on {@link #close()}. The query of an iterator
+ * abandoned without being closed is closed once the iterator is garbage collected, provided that its PersistenceManager is
+ * still open, but iterators should be closed, since their query holds a cursor meanwhile.
+ * @param <T> Type of the results
+ */
+public class StreamingQueryIterator<T> implements Iterator<T>, AutoCloseable
+{
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final PersistenceManager pm;
+
+    /** Closes the query, on {@link #close()} or once this iterator is unreachable. */
+    private final Cleaner.Cleanable queryCloser;
+
+    private Iterator<T> results;
+
+    /** Result last returned, to evict when moving past it. */
+    private Object previous;
+
+    /**
+     * Constructor, executing the query.
+     * @param pm The PersistenceManager of the query
+     * @param query The query
+     * @param fetchSize JDBC fetch size, or 0 to use the default
+     * @param parameters The query parameters
+     */
+    @SuppressWarnings("unchecked") // The results of the query are of the type of the iterator
+    StreamingQueryIterator(PersistenceManager pm, Query<?> query, int fetchSize, Object... parameters)
+    {
+        this.pm = pm;
+        query.addExtension(org.datanucleus.store.query.Query.EXTENSION_RESULT_CACHE_TYPE, "none");
+        query.addExtension(org.datanucleus.store.query.Query.EXTENSION_LOAD_RESULTS_AT_COMMIT, "false");
+        if (fetchSize > 0)
+        {
+            query.getFetchPlan().setFetchSize(fetchSize);
+        }
+        this.results = ((Collection<T>)query.executeWithArray(parameters)).iterator();
+        this.queryCloser = CLEANER.register(this, new QueryCloser(pm, query));
+    }
+
+    public boolean hasNext()
+    {
+        if (results == null)
+        {
+            return false;
+        }
+        if (!results.hasNext())
+        {
+            close();
+            return false;
+        }
+        return true;
+    }
+
+    public T next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        evictPrevious();
+        T result = results.next();
+        previous = result;
+        return result;
+    }
+
+    private void evictPrevious()
+    {
+        if (previous != null && JDOHelper.isPersistent(previous) && !JDOHelper.isDirty(previous))
+        {
+            pm.evict(previous);
+        }
+        previous = null;
+    }
+
+    /**
+     * Method to end the iteration, evicting the last result and closing the query.
+     */
+    public void close()
+    {
+        if (results != null)
+        {
+            evictPrevious();
+            results = null;
+            queryCloser.clean();
+        }
+    }
+
+    /**
+     * Action closing the query of an iterator. Holds no reference to the iterator, so that it can become unreachable.
+     */
+    private static class QueryCloser implements Runnable
+    {
+        private final PersistenceManager pm;
+
+        private final Query<?> query;
+
+        QueryCloser(PersistenceManager pm, Query<?> query)
+        {
+            this.pm = pm;
+            this.query = query;
+        }
+
+        public void run()
+        {
+            if (pm.isClosed())
+            {
+                return;
+            }
+            try
+            {
+                query.closeAll();
+            }
+            catch (RuntimeException e)
+            {
+                PersistenceManagerImpl.LOGGER.debug("Exception closing query of streaming iterator : " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.xa.Xid;
+
+/**
+ * Fixed-size ring buffer of the most recent trace records of a ManagedConnection, for post-mortem diagnosis.
+ * A record is the event type, a timestamp, the identity hash code of the subject (such as the handle) and a detail
+ * value (such as the Xid hash code and flags), held in a preallocated long array, so recording allocates nothing.
+ * Writers claim a slot with an atomic increment and publish the record header last, so recording is lock-free;
+ * records overwritten while being dumped are skipped. Records are only formatted when dumped, or when debug logging is enabled.
+ */
+class TraceBuffer
+{
+    /** Types of trace records. */
+    enum Event
+    {
+        HANDLE_CREATED,
+        HANDLE_ASSOCIATED,
+        HANDLE_CLOSED,
+        BEGIN,
+        DESTROY,
+        CLEANUP,
+        GET_LOCAL_TRANSACTION,
+        GET_XA_RESOURCE,
+        XA_START,
+        XA_END,
+        XA_PREPARE,
+        XA_COMMIT,
+        XA_ROLLBACK,
+        XA_SET_TIMEOUT,
+        LOCAL_BEGIN,
+        LOCAL_COMMIT,
+        LOCAL_ROLLBACK,
+        PM_BEGIN,
+        PM_COMMIT,
+        PM_ROLLBACK,
+        FAILED
+    }
+
+    private static final Event[] EVENTS = Event.values();
+
+    /** Number of records kept. Must be a power of two. */
+    static final int SIZE = 128;
+
+    private static final int FIELDS = 4;
+
+    private static final VarHandle RECORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /** Records, each being header ((sequence + 1) shifted, then event ordinal), nanoTime, subject identity, detail. */
+    private final long[] records = new long[SIZE * FIELDS];
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final long wallClockBase = System.currentTimeMillis();
+
+    private final long nanoTimeBase = System.nanoTime();
+
+    /**
+     * Method to add a trace record, overwriting the oldest when full.
+     * @param event Type of record
+     * @param subject Object the record is about, recorded by identity hash code (may be null)
+     * @param detail Detail value of the record
+     */
+    void record(Event event, Object subject, long detail)
+    {
+        long seq = sequence.getAndIncrement();
+        int base = (int)(seq & (SIZE - 1)) * FIELDS;
+        RECORDS.setOpaque(records, base, 0L);
+        VarHandle.storeStoreFence();
+        records[base + 1] = System.nanoTime();
+        records[base + 2] = System.identityHashCode(subject);
+        records[base + 3] = detail;
+        RECORDS.setRelease(records, base, ((seq + 1) << 8) | event.ordinal());
+
+        if (PersistenceManagerImpl.LOGGER.isDebugEnabled())
+        {
+            PersistenceManagerImpl.LOGGER.debug(format(event, subject, detail));
+        }
+    }
+
+    /**
+     * Convenience method to give the detail value of a record for an XA transaction branch.
+     * @param xid The Xid
+     * @param flags Flags of the XA call
+     * @return The detail value
+     */
+    static long xid(Xid xid, int flags)
+    {
+        return ((long)(xid != null ? xid.hashCode() : 0) << 32) | (flags & 0xffffffffL);
+    }
+
+    /**
+     * Accessor for the records currently in the buffer, oldest first, formatted.
+     * @return The records
+     */
+    List<String> dump()
+    {
+        long end = sequence.get();
+        List<String> lines = new ArrayList<>(SIZE);
+        for (long seq = Math.max(0, end - SIZE); seq < end; seq++)
+        {
+            int base = (int)(seq & (SIZE - 1)) * FIELDS;
+            long header = (long)RECORDS.getAcquire(records, base);
+            long nanos = records[base + 1];
+            long subject = records[base + 2];
+            long detail = records[base + 3];
+            VarHandle.acquireFence();
+            if (header >>> 8 != seq + 1 || (long)RECORDS.getOpaque(records, base) != header)
+            {
+                // Not yet written, or overwritten while reading
+                continue;
+            }
+            Event event = EVENTS[(int)(header & 0xff)];
+            long millis = wallClockBase + TimeUnit.NANOSECONDS.toMillis(nanos - nanoTimeBase);
+            lines.add(Instant.ofEpochMilli(millis) + " " + format(event, subject != 0 ? Integer.toHexString((int)subject) : null, detail));
+        }
+        return lines;
+    }
+
+    /**
+     * Method to log the records of the buffer.
+     * @param header Header line, identifying the connection and why it is dumped
+     */
+    void log(String header)
+    {
+        StringBuilder str = new StringBuilder(header);
+        for (String line : dump())
+        {
+            str.append("\n  ").append(line);
+        }
+        PersistenceManagerImpl.LOGGER.info(str.toString());
+    }
+
+    private static String format(Event event, Object subject, long detail)
+    {
+        StringBuilder str = new StringBuilder(event.name());
+        if (subject != null)
+        {
+            str.append(" ").append(subject instanceof String ? "@" + subject : ConnectorEvents.identity(subject));
+        }
+        switch (event)
+        {
+            case XA_START:
+            case XA_END:
+            case XA_PREPARE:
+            case XA_COMMIT:
+            case XA_ROLLBACK:
+                str.append(" xid#").append(Integer.toHexString((int)(detail >>> 32))).append(" flags=").append((int)detail);
+                break;
+            case XA_SET_TIMEOUT:
+                str.append(" seconds=").append(detail);
+                break;
+            case FAILED:
+                str.append(" in ").append(EVENTS[(int)detail]);
+                break;
+            default:
+                break;
+        }
+        return str.toString();
+    }
+}
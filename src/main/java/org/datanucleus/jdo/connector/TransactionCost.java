@@ -0,0 +1,162 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import javax.transaction.xa.Xid;
+
+/**
+ * Summary of the work done by a transaction of a ManagedConnection, over all of its PersistenceManagers (shards),
+ * as reported to {@link TransactionCostListener}s when the transaction completes.
+ * Statement and object counts come from the DataNucleus statistics of the PersistenceManagers.
+ */
+public class TransactionCost
+{
+    private final Xid xid;
+    private final boolean committed;
+    private final long durationNanos;
+    private final int datastoreReads;
+    private final int datastoreWrites;
+    private final int flushes;
+    private final int objectsLoaded;
+    private final int objectsInserted;
+    private final int objectsUpdated;
+    private final int objectsDeleted;
+
+    TransactionCost(Xid xid, boolean committed, long durationNanos, int datastoreReads, int datastoreWrites, int flushes,
+            int objectsLoaded, int objectsInserted, int objectsUpdated, int objectsDeleted)
+    {
+        this.xid = xid;
+        this.committed = committed;
+        this.durationNanos = durationNanos;
+        this.datastoreReads = datastoreReads;
+        this.datastoreWrites = datastoreWrites;
+        this.flushes = flushes;
+        this.objectsLoaded = objectsLoaded;
+        this.objectsInserted = objectsInserted;
+        this.objectsUpdated = objectsUpdated;
+        this.objectsDeleted = objectsDeleted;
+    }
+
+    /**
+     * Accessor for the XA transaction branch.
+     * @return The Xid, or null for a local transaction
+     */
+    public Xid getXid()
+    {
+        return xid;
+    }
+
+    /**
+     * Accessor for whether the transaction committed (as opposed to rolled back).
+     * @return Whether committed
+     */
+    public boolean isCommitted()
+    {
+        return committed;
+    }
+
+    /**
+     * Accessor for the time from the start of the transaction to its completion.
+     * @return The duration in nanoseconds
+     */
+    public long getDurationNanos()
+    {
+        return durationNanos;
+    }
+
+    /**
+     * Accessor for the number of statements executed, reading and writing.
+     * @return Number of statements
+     */
+    public int getStatements()
+    {
+        return datastoreReads + datastoreWrites;
+    }
+
+    /**
+     * Accessor for the number of statements reading from the datastore.
+     * @return Number of reads
+     */
+    public int getDatastoreReads()
+    {
+        return datastoreReads;
+    }
+
+    /**
+     * Accessor for the number of statements writing to the datastore.
+     * @return Number of writes
+     */
+    public int getDatastoreWrites()
+    {
+        return datastoreWrites;
+    }
+
+    /**
+     * Accessor for the number of flushes of the transaction.
+     * @return Number of flushes
+     */
+    public int getFlushes()
+    {
+        return flushes;
+    }
+
+    /**
+     * Accessor for the number of objects fetched from the datastore.
+     * @return Number of objects loaded
+     */
+    public int getObjectsLoaded()
+    {
+        return objectsLoaded;
+    }
+
+    /**
+     * Accessor for the number of objects dirtied (inserted, updated or deleted).
+     * @return Number of objects dirtied
+     */
+    public int getObjectsDirtied()
+    {
+        return objectsInserted + objectsUpdated + objectsDeleted;
+    }
+
+    public int getObjectsInserted()
+    {
+        return objectsInserted;
+    }
+
+    public int getObjectsUpdated()
+    {
+        return objectsUpdated;
+    }
+
+    public int getObjectsDeleted()
+    {
+        return objectsDeleted;
+    }
+
+    /**
+     * Structured (key=value) description of the cost, as used for logging.
+     * @return The description
+     */
+    public String toString()
+    {
+        return "outcome=" + (committed ? "committed" : "rolledback") + (xid != null ? " xid=" + xid : "") +
+            " durationMs=" + durationNanos / 1000000 + " statements=" + getStatements() + " reads=" + datastoreReads +
+            " writes=" + datastoreWrites + " flushes=" + flushes + " objectsLoaded=" + objectsLoaded +
+            " objectsInserted=" + objectsInserted + " objectsUpdated=" + objectsUpdated + " objectsDeleted=" + objectsDeleted;
+    }
+}
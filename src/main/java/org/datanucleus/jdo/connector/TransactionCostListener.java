@@ -0,0 +1,33 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+/**
+ * Listener notified of the cost of each transaction completed by the container on a ManagedConnection.
+ * Registered using the TransactionCostListeners config property, or with
+ * {@link PersistenceManagerFactoryImpl#addTransactionCostListener(TransactionCostListener)}.
+ * Called on the thread completing the transaction, so implementations should be quick.
+ */
+public interface TransactionCostListener
+{
+    /**
+     * Method called when a transaction completes.
+     * @param cost The cost of the transaction
+     */
+    void transactionCompleted(TransactionCost cost);
+}
@@ -0,0 +1,145 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import org.datanucleus.api.jdo.JDOPersistenceManager;
+import org.datanucleus.management.ManagerStatistics;
+import org.datanucleus.transaction.TransactionEventListener;
+
+/**
+ * Listener on the transaction of a PersistenceManager, taking a snapshot of its statistics when the transaction starts
+ * and counting flushes, so that the cost of the transaction can be computed when it completes.
+ */
+class TransactionCostTracker implements TransactionEventListener
+{
+    private final JDOPersistenceManager pm;
+
+    private long startNanos;
+    private int flushes;
+    private int reads;
+    private int writes;
+    private int fetches;
+    private int inserts;
+    private int updates;
+    private int deletes;
+
+    private TransactionCostTracker(JDOPersistenceManager pm)
+    {
+        this.pm = pm;
+        transactionStarted();
+    }
+
+    /**
+     * Method to track the transactions of a PersistenceManager. Its PMF must have statistics enabled.
+     * @param pm The PersistenceManager
+     * @return The tracker
+     */
+    static TransactionCostTracker track(JDOPersistenceManager pm)
+    {
+        TransactionCostTracker tracker = new TransactionCostTracker(pm);
+        pm.getExecutionContext().getTransaction().bindTransactionEventListener(tracker);
+        return tracker;
+    }
+
+    JDOPersistenceManager getPersistenceManager()
+    {
+        return pm;
+    }
+
+    long getStartNanos()
+    {
+        return startNanos;
+    }
+
+    /**
+     * Method to add the work done since the start of the transaction to the provided totals, in the order
+     * reads, writes, flushes, fetches, inserts, updates, deletes.
+     * @param totals The totals to add to
+     */
+    void addTo(int[] totals)
+    {
+        ManagerStatistics stats = pm.getExecutionContext().getStatistics();
+        if (stats != null)
+        {
+            totals[0] += stats.getNumberOfDatastoreReads() - reads;
+            totals[1] += stats.getNumberOfDatastoreWrites() - writes;
+            totals[3] += stats.getNumberOfObjectFetches() - fetches;
+            totals[4] += stats.getNumberOfObjectInserts() - inserts;
+            totals[5] += stats.getNumberOfObjectUpdates() - updates;
+            totals[6] += stats.getNumberOfObjectDeletes() - deletes;
+        }
+        totals[2] += flushes;
+    }
+
+    public void transactionStarted()
+    {
+        startNanos = System.nanoTime();
+        flushes = 0;
+        ManagerStatistics stats = pm.getExecutionContext().getStatistics();
+        if (stats != null)
+        {
+            reads = stats.getNumberOfDatastoreReads();
+            writes = stats.getNumberOfDatastoreWrites();
+            fetches = stats.getNumberOfObjectFetches();
+            inserts = stats.getNumberOfObjectInserts();
+            updates = stats.getNumberOfObjectUpdates();
+            deletes = stats.getNumberOfObjectDeletes();
+        }
+    }
+
+    public void transactionFlushed()
+    {
+        flushes++;
+    }
+
+    public void transactionEnded()
+    {
+    }
+
+    public void transactionPreFlush()
+    {
+    }
+
+    public void transactionPreCommit()
+    {
+    }
+
+    public void transactionCommitted()
+    {
+    }
+
+    public void transactionPreRollBack()
+    {
+    }
+
+    public void transactionRolledBack()
+    {
+    }
+
+    public void transactionSetSavepoint(String name)
+    {
+    }
+
+    public void transactionReleaseSavepoint(String name)
+    {
+    }
+
+    public void transactionRollbackToSavepoint(String name)
+    {
+    }
+}
@@ -0,0 +1,165 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jdo.JDOUserException;
+import javax.jdo.Query;
+
+import org.junit.Test;
+
+/**
+ * Tests for the caching and eviction of {@link CompiledQueryCache}, with the compilation of templates replaced by
+ * stub queries so that no datastore is needed.
+ */
+public class CompiledQueryCacheTest
+{
+    /** Texts of the queries compiled, in order. */
+    private final List<String> compiled = new CopyOnWriteArrayList<>();
+
+    /** Texts of the templates closed. */
+    private final Set<String> closed = ConcurrentHashMap.newKeySet();
+
+    /** Texts of the queries that fail to compile. */
+    private final Set<String> invalid = ConcurrentHashMap.newKeySet();
+
+    private CompiledQueryCache newCache(int maxSize)
+    {
+        return new CompiledQueryCache(null, maxSize)
+        {
+            Query<?> compile(Class<?> cls, String text)
+            {
+                compiled.add(text);
+                if (invalid.contains(text))
+                {
+                    return null;
+                }
+                if (text.startsWith("throw"))
+                {
+                    throw new JDOUserException("Unable to compile " + text);
+                }
+                return (Query<?>)Proxy.newProxyInstance(Query.class.getClassLoader(), new Class<?>[] {Query.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("closeAll"))
+                    {
+                        closed.add(text);
+                    }
+                    return null;
+                });
+            }
+        };
+    }
+
+    @Test
+    public void testQueryCompiledOnce()
+    {
+        CompiledQueryCache cache = newCache(10);
+        Query<?> template = cache.getTemplate(String.class, "this == p");
+        assertNotNull(template);
+        assertSame(template, cache.getTemplate(String.class, "this == p"));
+        assertEquals(List.of("this == p"), compiled);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        // The same filter for another candidate class is another query
+        cache.getTemplate(Integer.class, "this == p");
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testOldestEvictedBeyondMaximumSize()
+    {
+        CompiledQueryCache cache = newCache(2);
+        cache.getTemplate(null, "SELECT FROM A");
+        cache.getTemplate(null, "SELECT FROM B");
+        cache.getTemplate(null, "SELECT FROM C");
+
+        assertEquals(2, cache.size());
+        assertEquals(Set.of("SELECT FROM A"), closed);
+
+        // The evicted query is compiled again, evicting the next oldest
+        cache.getTemplate(null, "SELECT FROM A");
+        assertEquals(List.of("SELECT FROM A", "SELECT FROM B", "SELECT FROM C", "SELECT FROM A"), compiled);
+        assertEquals(Set.of("SELECT FROM A", "SELECT FROM B"), closed);
+    }
+
+    @Test
+    public void testFailedCompileNotCached()
+    {
+        CompiledQueryCache cache = newCache(10);
+        invalid.add("SELECT FROM Invalid");
+        assertNull(cache.getTemplate(null, "SELECT FROM Invalid"));
+        assertEquals(0, cache.size());
+
+        // Compiled again on the next use, so that its error is reported as without the cache
+        assertNull(cache.getTemplate(null, "SELECT FROM Invalid"));
+        assertEquals(List.of("SELECT FROM Invalid", "SELECT FROM Invalid"), compiled);
+
+        // Once fixed (e.g. metadata added), it is cached
+        invalid.clear();
+        assertNotNull(cache.getTemplate(null, "SELECT FROM Invalid"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testExceptionDuringCompileNotCached()
+    {
+        CompiledQueryCache cache = newCache(10);
+        try
+        {
+            cache.getTemplate(null, "throw");
+            fail("Expected the compile exception to be thrown");
+        }
+        catch (JDOUserException e)
+        {
+            // Expected
+        }
+        assertEquals(0, cache.size());
+
+        try
+        {
+            cache.getTemplate(null, "throw");
+            fail("Expected the compile exception to be thrown");
+        }
+        catch (JDOUserException e)
+        {
+            // Expected
+        }
+        assertEquals(List.of("throw", "throw"), compiled);
+    }
+
+    @Test
+    public void testBulkQueriesNotCached()
+    {
+        CompiledQueryCache cache = newCache(10);
+        assertNull(cache.getTemplate(null, "DELETE FROM A"));
+        assertNull(cache.getTemplate(null, " update A SET x = 1"));
+        assertTrue(compiled.isEmpty());
+    }
+}
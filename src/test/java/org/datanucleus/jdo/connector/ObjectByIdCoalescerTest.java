@@ -0,0 +1,199 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.jdo.JDODataStoreException;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests for the batching of concurrent callers by {@link ObjectByIdCoalescer}, with the batch query replaced by a
+ * loader of stub objects so that no datastore is needed.
+ */
+public class ObjectByIdCoalescerTest
+{
+    /** Coalescing window, long enough for the callers of a test to join the batch of the first. */
+    private static final long WINDOW_MICROS = 500_000;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /** Keys of each batch loaded, in order. */
+    private final List<Set<Object>> batches = new CopyOnWriteArrayList<>();
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Loader returning "object" + key for each key, except those not found.
+     * @param notFound Keys not found
+     * @return The loader
+     */
+    private Function<Set<Object>, Map<Object, Object>> loader(Object... notFound)
+    {
+        return keys -> {
+            batches.add(Set.copyOf(keys));
+            Map<Object, Object> objects = new HashMap<>();
+            for (Object key : keys)
+            {
+                if (!List.of(notFound).contains(key))
+                {
+                    objects.put(key, "object" + key);
+                }
+            }
+            return objects;
+        };
+    }
+
+    private CompletableFuture<Object> getObjectAsync(ObjectByIdCoalescer coalescer, String className, Object key,
+            Function<Set<Object>, Map<Object, Object>> loader)
+    {
+        return CompletableFuture.supplyAsync(() -> coalescer.getObject(className, key, loader), executor);
+    }
+
+    /**
+     * Convenience method to let the callers started so far register with their batch.
+     */
+    private static void pause() throws InterruptedException
+    {
+        Thread.sleep(50);
+    }
+
+    @Test
+    public void testLeaderAndFollowersCompletedFromOneBatch() throws Exception
+    {
+        ObjectByIdCoalescer coalescer = new ObjectByIdCoalescer(WINDOW_MICROS, 100);
+        CountDownLatch loading = new CountDownLatch(1);
+        Function<Set<Object>, Map<Object, Object>> loader = loader(3);
+        Function<Set<Object>, Map<Object, Object>> blockingLoader = keys -> {
+            try
+            {
+                loading.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            return loader.apply(keys);
+        };
+
+        CompletableFuture<Object> leader = getObjectAsync(coalescer, "A", 1, blockingLoader);
+        pause();
+        CompletableFuture<Object> follower = getObjectAsync(coalescer, "A", 2, blockingLoader);
+        CompletableFuture<Object> notFound = getObjectAsync(coalescer, "A", 3, blockingLoader);
+        CompletableFuture<Object> sameKey = getObjectAsync(coalescer, "A", 2, blockingLoader);
+
+        // Followers wait for the leader to load the batch
+        Thread.sleep(TimeUnit.MICROSECONDS.toMillis(WINDOW_MICROS) + 100);
+        assertFalse(follower.isDone());
+        loading.countDown();
+
+        assertEquals("object1", leader.get(10, TimeUnit.SECONDS));
+        assertEquals("object2", follower.get(10, TimeUnit.SECONDS));
+        assertEquals("object2", sameKey.get(10, TimeUnit.SECONDS));
+        assertNull(notFound.get(10, TimeUnit.SECONDS));
+        assertEquals(List.of(Set.of(1, 2, 3)), batches);
+    }
+
+    @Test
+    public void testSingleCallerNotLoaded()
+    {
+        ObjectByIdCoalescer coalescer = new ObjectByIdCoalescer(1000, 100);
+        assertNull(coalescer.getObject("A", 1, loader()));
+        assertTrue(batches.isEmpty());
+    }
+
+    @Test
+    public void testFailedBatchCompletesAllCallers() throws Exception
+    {
+        ObjectByIdCoalescer coalescer = new ObjectByIdCoalescer(WINDOW_MICROS, 100);
+        Function<Set<Object>, Map<Object, Object>> loader = keys -> {
+            batches.add(Set.copyOf(keys));
+            throw new JDODataStoreException("Batch query failed");
+        };
+
+        CompletableFuture<Object> leader = getObjectAsync(coalescer, "A", 1, loader);
+        pause();
+        CompletableFuture<Object> follower = getObjectAsync(coalescer, "A", 2, loader);
+
+        // Each caller is left to look up its object as usual
+        assertNull(leader.get(10, TimeUnit.SECONDS));
+        assertNull(follower.get(10, TimeUnit.SECONDS));
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    public void testFullBatchStartsNewBatch() throws Exception
+    {
+        ObjectByIdCoalescer coalescer = new ObjectByIdCoalescer(WINDOW_MICROS, 2);
+        Function<Set<Object>, Map<Object, Object>> loader = loader();
+
+        CompletableFuture<Object> first = getObjectAsync(coalescer, "A", 1, loader);
+        pause();
+        CompletableFuture<Object> second = getObjectAsync(coalescer, "A", 2, loader);
+        pause();
+        CompletableFuture<Object> third = getObjectAsync(coalescer, "A", 3, loader);
+        pause();
+        CompletableFuture<Object> fourth = getObjectAsync(coalescer, "A", 4, loader);
+
+        assertEquals("object1", first.get(10, TimeUnit.SECONDS));
+        assertEquals("object2", second.get(10, TimeUnit.SECONDS));
+        assertEquals("object3", third.get(10, TimeUnit.SECONDS));
+        assertEquals("object4", fourth.get(10, TimeUnit.SECONDS));
+        assertEquals(Set.of(Set.of(1, 2), Set.of(3, 4)), Set.copyOf(batches));
+    }
+
+    @Test
+    public void testClassesBatchedSeparately() throws Exception
+    {
+        ObjectByIdCoalescer coalescer = new ObjectByIdCoalescer(WINDOW_MICROS, 100);
+        Function<Set<Object>, Map<Object, Object>> loader = loader();
+
+        CompletableFuture<Object> a1 = getObjectAsync(coalescer, "A", 1, loader);
+        CompletableFuture<Object> b1 = getObjectAsync(coalescer, "B", 1, loader);
+        pause();
+        CompletableFuture<Object> a2 = getObjectAsync(coalescer, "A", 2, loader);
+        CompletableFuture<Object> b2 = getObjectAsync(coalescer, "B", 2, loader);
+
+        assertEquals("object1", a1.get(10, TimeUnit.SECONDS));
+        assertEquals("object2", a2.get(10, TimeUnit.SECONDS));
+        assertEquals("object1", b1.get(10, TimeUnit.SECONDS));
+        assertEquals("object2", b2.get(10, TimeUnit.SECONDS));
+        assertEquals(2, batches.size());
+    }
+}
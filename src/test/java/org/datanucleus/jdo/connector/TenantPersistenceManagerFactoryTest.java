@@ -0,0 +1,204 @@
+/**********************************************************************
+Copyright (c) 2026 DataNucleus and others. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors:
+    ...
+**********************************************************************/
+package org.datanucleus.jdo.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.datanucleus.api.jdo.JDOPersistenceManagerFactory;
+import org.datanucleus.exceptions.NucleusException;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the tenant PMFs of {@link ManagedConnectionFactoryImpl}, using PMFs that only record being closed.
+ */
+public class TenantPersistenceManagerFactoryTest
+{
+    private final List<String> created = new CopyOnWriteArrayList<>();
+
+    /** Latch that the creation of the PMF of a tenant waits for, when present. */
+    private final Map<String, CountDownLatch> creationLatches = new ConcurrentHashMap<>();
+
+    /** Tenants whose next PMF creation fails. */
+    private final List<String> failingTenants = new CopyOnWriteArrayList<>();
+
+    private ManagedConnectionFactoryImpl mcf;
+
+    @Before
+    public void setUp()
+    {
+        mcf = new ManagedConnectionFactoryImpl()
+        {
+            protected JDOPersistenceManagerFactory createTenantPersistenceManagerFactory(String tenantId)
+            {
+                CountDownLatch latch = creationLatches.get(tenantId);
+                if (latch != null)
+                {
+                    try
+                    {
+                        latch.await();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (failingTenants.remove(tenantId))
+                {
+                    throw new NucleusException("Tenant " + tenantId + " unavailable");
+                }
+                created.add(tenantId);
+                return new RecordingPersistenceManagerFactory();
+            }
+        };
+        mcf.setTenantConnectionFactoryName("jdbc/{tenant}");
+        mcf.setMaxTenants(2);
+    }
+
+    @Test
+    public void testPersistenceManagerFactoryCreatedOncePerTenant()
+    {
+        JDOPersistenceManagerFactory pmf = mcf.getPersistenceManagerFactory("a");
+        assertSame(pmf, mcf.getPersistenceManagerFactory("a"));
+        assertNotSame(pmf, mcf.getPersistenceManagerFactory("b"));
+        assertEquals(List.of("a", "b"), created);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedTenantEvicted()
+    {
+        JDOPersistenceManagerFactory pmfA = mcf.getPersistenceManagerFactory("a");
+        JDOPersistenceManagerFactory pmfB = mcf.getPersistenceManagerFactory("b");
+        mcf.getPersistenceManagerFactory("a"); // b is now the least recently used
+        JDOPersistenceManagerFactory pmfC = mcf.getPersistenceManagerFactory("c");
+
+        assertFalse(pmfA.isClosed());
+        assertTrue(pmfB.isClosed());
+        assertFalse(pmfC.isClosed());
+        assertSame(pmfA, mcf.getPersistenceManagerFactory("a"));
+
+        // An evicted tenant gets a new PMF on next use
+        assertNotSame(pmfB, mcf.getPersistenceManagerFactory("b"));
+        assertEquals(List.of("a", "b", "c", "b"), created);
+    }
+
+    @Test
+    public void testTenantWithConnectionsNotEvicted()
+    {
+        mcf.tenantConnectionsChanged("a", 1);
+        JDOPersistenceManagerFactory pmfA = mcf.getPersistenceManagerFactory("a");
+        JDOPersistenceManagerFactory pmfB = mcf.getPersistenceManagerFactory("b");
+        mcf.getPersistenceManagerFactory("b"); // a is now the least recently used, but has a connection
+        mcf.getPersistenceManagerFactory("c");
+
+        assertFalse(pmfA.isClosed());
+        assertTrue(pmfB.isClosed());
+
+        mcf.tenantConnectionsChanged("a", -1);
+        mcf.getPersistenceManagerFactory("c"); // a is idle and least recently used
+        mcf.getPersistenceManagerFactory("d");
+        assertTrue(pmfA.isClosed());
+    }
+
+    @Test
+    public void testFailedCreationRetried()
+    {
+        failingTenants.add("a");
+        try
+        {
+            mcf.getPersistenceManagerFactory("a");
+            fail("Expected the creation of the tenant PMF to fail");
+        }
+        catch (NucleusException e)
+        {
+            // Expected
+        }
+        assertTrue(created.isEmpty());
+
+        JDOPersistenceManagerFactory pmf = mcf.getPersistenceManagerFactory("a");
+        assertFalse(pmf.isClosed());
+        assertEquals(List.of("a"), created);
+    }
+
+    @Test
+    public void testCreationDoesNotBlockOtherTenants() throws Exception
+    {
+        CountDownLatch latch = new CountDownLatch(1);
+        creationLatches.put("slow", latch);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try
+        {
+            CompletableFuture<JDOPersistenceManagerFactory> slow = CompletableFuture.supplyAsync(() -> mcf.getPersistenceManagerFactory("slow"), executor);
+            CompletableFuture<JDOPersistenceManagerFactory> slowFollower;
+            try
+            {
+                CompletableFuture<JDOPersistenceManagerFactory> other = CompletableFuture.supplyAsync(() -> mcf.getPersistenceManagerFactory("other"), executor);
+                assertFalse(other.get(10, TimeUnit.SECONDS).isClosed());
+
+                // Another request for the tenant being created waits for it rather than creating a second PMF
+                slowFollower = CompletableFuture.supplyAsync(() -> mcf.getPersistenceManagerFactory("slow"), executor);
+                assertFalse(slow.isDone());
+            }
+            finally
+            {
+                latch.countDown();
+            }
+            assertSame(slow.get(10, TimeUnit.SECONDS), slowFollower.get(10, TimeUnit.SECONDS));
+            assertEquals(1, created.stream().filter("slow"::equals).count());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * PMF that isn't configured for any datastore, and only records being closed.
+     */
+    private static class RecordingPersistenceManagerFactory extends JDOPersistenceManagerFactory
+    {
+        private static final long serialVersionUID = 1L;
+
+        private volatile boolean closed;
+
+        public synchronized void close()
+        {
+            closed = true;
+        }
+
+        public synchronized boolean isClosed()
+        {
+            return closed;
+        }
+    }
+}